@@ -0,0 +1,360 @@
+package picture;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Loads and saves pictures without blocking the calling thread, for
+ * services which cannot spare a thread per request.
+ * <p>
+ * Files are read and written through <tt>AsynchronousFileChannel</tt> and
+ * URLs are fetched with the non-blocking <tt>java.net.http</tt> client, so
+ * no thread waits on I/O. Decoding and encoding, which keep a core busy,
+ * run on a dedicated pool of <tt>picture.io.threads</tt> daemon threads (by
+ * default one per available processor, and at least one), so however many
+ * requests are in flight they never take more cores than that. At most four
+ * pieces of work per thread wait for the pool; beyond that the thread
+ * handing work over runs it itself, which holds back whoever is producing
+ * it, so a burst of requests cannot queue decoded pictures without limit.
+ * <p>
+ * Every method returns with a future, at once unless the pool's queue is
+ * full. A future which fails does so
+ * with a {@link PictureIOException} (wrapped in a
+ * <tt>CompletionException</tt> or <tt>ExecutionException</tt> by the
+ * future's methods), whose subclass tells a missing picture from an
+ * unreadable one or an HTTP error.
+ *
+ * @see picture.Utils#loadPicture(String)
+ */
+public final class AsyncPictureIO {
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private AsyncPictureIO() {
+  }
+
+  /**
+   * The pool decoding and encoding run on, created on first use.
+   */
+  private static final class Codec {
+
+    static final int THREADS = Math.max(1, Integer.getInteger(
+        "picture.io.threads", Runtime.getRuntime().availableProcessors()));
+
+    static final ExecutorService POOL = new ThreadPoolExecutor(THREADS,
+        THREADS, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(4 * THREADS), new CodecThreads(),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * Creates the daemon threads of the codec pool.
+   */
+  private static final class CodecThreads implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable,
+          "picture-codec-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  /**
+   * The HTTP client, created on first use.
+   */
+  private static final class Http {
+
+    static final HttpClient CLIENT = HttpClient.newBuilder()
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .connectTimeout(Duration.ofSeconds(30)).build();
+  }
+
+  /**
+   * Load a picture from a URL (http, https or file) or a filesystem
+   * location, like <tt>Utils.loadPicture</tt>.
+   *
+   * @param location
+   *          the URL or file of the picture
+   * @return a future completed with the picture, which has an alpha
+   *         component if the image has one.
+   */
+  public static CompletableFuture<Picture> load(String location) {
+    try {
+      URI uri = new URI(location);
+      String scheme = uri.getScheme();
+      if (scheme != null && (scheme.equalsIgnoreCase("http")
+          || scheme.equalsIgnoreCase("https")
+          || scheme.equalsIgnoreCase("file"))) {
+        return load(uri);
+      }
+    } catch (URISyntaxException e) {
+      // not a URL, so a file
+    }
+    return load(Paths.get(location));
+  }
+
+  /**
+   * Load a picture from a file.
+   *
+   * @param file
+   *          the file holding the picture
+   * @return a future completed with the picture.
+   */
+  public static CompletableFuture<Picture> load(Path file) {
+    String location = file.toString();
+    return read(file).thenApplyAsync(bytes -> decode(location, bytes),
+        Codec.POOL);
+  }
+
+  /**
+   * Load a picture from an http, https or file URL.
+   *
+   * @param uri
+   *          the URL of the picture
+   * @return a future completed with the picture.
+   */
+  public static CompletableFuture<Picture> load(URI uri) {
+    String location = uri.toString();
+    Path file = null;
+    HttpRequest request = null;
+    try {
+      if ("file".equalsIgnoreCase(uri.getScheme())) {
+        file = Paths.get(uri);
+      } else {
+        request = HttpRequest.newBuilder(uri).GET().build();
+      }
+    } catch (IllegalArgumentException e) {
+      return CompletableFuture.failedFuture(
+          new PictureIOException(location, "unsupported URL", e));
+    }
+    if (file != null) {
+      return load(file);
+    }
+    return Http.CLIENT.sendAsync(request,
+        HttpResponse.BodyHandlers.ofByteArray())
+        .handle((response, error) -> {
+          if (error != null) {
+            throw new CompletionException(new PictureIOException(location,
+                "could not fetch", unwrap(error)));
+          }
+          int status = response.statusCode();
+          if (status == 404) {
+            throw new CompletionException(
+                new PictureIOException.NotFound(location, null));
+          }
+          if (status < 200 || status > 299) {
+            throw new CompletionException(
+                new PictureIOException.HttpStatus(location, status));
+          }
+          return response.body();
+        }).thenApplyAsync(bytes -> decode(location, bytes), Codec.POOL);
+  }
+
+  /**
+   * Save a picture to a file in PNG format, replacing the file if it
+   * exists.
+   *
+   * @param picture
+   *          the picture to save, which must not be modified until the
+   *          future completes
+   * @param file
+   *          where to save the picture
+   * @return a future completed once the whole file has been written.
+   */
+  public static CompletableFuture<Void> save(Picture picture, Path file) {
+    String location = file.toString();
+    return CompletableFuture.supplyAsync(() -> encode(location, picture),
+        Codec.POOL).thenCompose(bytes -> write(file, bytes));
+  }
+
+  /**
+   * Decode an image in any format ImageIO reads.
+   */
+  private static Picture decode(String location, byte[] bytes) {
+    BufferedImage image;
+    try {
+      image = ImageIO.read(new ByteArrayInputStream(bytes));
+    } catch (IOException | RuntimeException e) {
+      throw new CompletionException(
+          new PictureIOException.Unreadable(location, e));
+    }
+    if (image == null) {
+      throw new CompletionException(
+          new PictureIOException.Unreadable(location, null));
+    }
+    return Utils.toPicture(image);
+  }
+
+  /**
+   * Encode a picture as PNG.
+   */
+  private static byte[] encode(String location, Picture picture) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      if (!ImageIO.write(picture.image(), "png", out)) {
+        throw new IOException("no PNG writer");
+      }
+    } catch (IOException e) {
+      throw new CompletionException(
+          new PictureIOException(location, "could not encode", e));
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Read the whole of a file.
+   */
+  private static CompletableFuture<byte[]> read(Path file) {
+    String location = file.toString();
+    CompletableFuture<byte[]> result = new CompletableFuture<>();
+    AsynchronousFileChannel channel = null;
+    ByteBuffer buffer;
+    try {
+      channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE - 8) {
+        channel.close();
+        result.completeExceptionally(new PictureIOException(location,
+            String.format(Locale.ROOT, "file too large (%d bytes)", size),
+            null));
+        return result;
+      }
+      buffer = ByteBuffer.allocate((int) size);
+    } catch (NoSuchFileException e) {
+      result.completeExceptionally(
+          new PictureIOException.NotFound(location, e));
+      return result;
+    } catch (IOException e) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException suppressed) {
+          e.addSuppressed(suppressed);
+        }
+      }
+      result.completeExceptionally(
+          new PictureIOException(location, "could not read", e));
+      return result;
+    }
+    transfer(channel, buffer, 0, false, location, result,
+        () -> Arrays.copyOf(buffer.array(), buffer.position()));
+    return result;
+  }
+
+  /**
+   * Write the whole of a file.
+   */
+  private static CompletableFuture<Void> write(Path file, byte[] bytes) {
+    String location = file.toString();
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    AsynchronousFileChannel channel;
+    try {
+      channel = AsynchronousFileChannel.open(file, StandardOpenOption.WRITE,
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    } catch (IOException e) {
+      result.completeExceptionally(
+          new PictureIOException(location, "could not write", e));
+      return result;
+    }
+    transfer(channel, ByteBuffer.wrap(bytes), 0, true, location, result,
+        () -> null);
+    return result;
+  }
+
+  /**
+   * Read or write from a position until the buffer is full or empty, or the
+   * end of the file is reached, then close the channel and complete the
+   * result. Each step is started from the completion of the one before, so
+   * no thread waits.
+   */
+  private static <T> void transfer(AsynchronousFileChannel channel,
+      ByteBuffer buffer, long position, boolean writing, String location,
+      CompletableFuture<T> result, Supplier<T> outcome) {
+    CompletionHandler<Integer, Void> handler =
+        new CompletionHandler<Integer, Void>() {
+          @Override
+          public void completed(Integer count, Void attachment) {
+            if (count < 0 || !buffer.hasRemaining()) {
+              close(channel, location, result, outcome);
+            } else {
+              transfer(channel, buffer, position + count, writing, location,
+                  result, outcome);
+            }
+          }
+
+          @Override
+          public void failed(Throwable error, Void attachment) {
+            try {
+              channel.close();
+            } catch (IOException e) {
+              error.addSuppressed(e);
+            }
+            result.completeExceptionally(new PictureIOException(location,
+                writing ? "could not write" : "could not read", error));
+          }
+        };
+    if (!buffer.hasRemaining()) {
+      close(channel, location, result, outcome);
+    } else if (writing) {
+      channel.write(buffer, position, null, handler);
+    } else {
+      channel.read(buffer, position, null, handler);
+    }
+  }
+
+  /**
+   * Close the channel of a finished transfer and complete its result.
+   */
+  private static <T> void close(AsynchronousFileChannel channel,
+      String location, CompletableFuture<T> result, Supplier<T> outcome) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      result.completeExceptionally(
+          new PictureIOException(location, "could not close", e));
+      return;
+    }
+    result.complete(outcome.get());
+  }
+
+  /**
+   * Return the cause of a failure reported by a future.
+   */
+  private static Throwable unwrap(Throwable error) {
+    return error instanceof CompletionException && error.getCause() != null
+        ? error.getCause() : error;
+  }
+}
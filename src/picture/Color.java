@@ -5,6 +5,8 @@ package picture;
  * The individual red, green and blue components of a colour are assigned a
  * value ranging from 0 to 255. A component value of 0 signifies no
  * contribution is made to the color.
+ * Colours also have an alpha (opacity) component, from 0 for fully
+ * transparent to 255 for fully opaque, which is 255 unless specified.
  */
 public class Color {
 
@@ -23,6 +25,11 @@ public class Color {
    */
   private int blue;
 
+  /**
+   * the opacity of the colour
+   */
+  private int alpha;
+
   /**
    * Default Construct. Construct a new Color object with the specified
    * intensity values for the red, green and blue components.
@@ -35,9 +42,27 @@ public class Color {
    *          the intensity of the blue component contributed to this Color.
    */
   public Color(int red, int green, int blue) {
+    this(red, green, blue, 255);
+  }
+
+  /**
+   * Construct a new Color object with the specified intensity values for the
+   * red, green and blue components and the specified opacity.
+   * 
+   * @param red
+   *          the intensity of the red component contributed to this Color.
+   * @param green
+   *          the intensity of the green component contributed to this Color.
+   * @param blue
+   *          the intensity of the blue component contributed to this Color.
+   * @param alpha
+   *          the opacity of this Color, 255 being fully opaque.
+   */
+  public Color(int red, int green, int blue, int alpha) {
     this.red = red;
     this.green = green;
     this.blue = blue;
+    this.alpha = alpha;
   }
 
   /**
@@ -67,6 +92,15 @@ public class Color {
     return blue;
   }
 
+  /**
+   * Return the opacity of <tt>this</tt> Color.
+   * 
+   * @return the alpha component, 255 being fully opaque.
+   */
+  public int getAlpha() {
+    return alpha;
+  }
+
   /**
    * Set the contribution of the red component to <tt>this</tt> Color.
    * 
@@ -96,4 +130,14 @@ public class Color {
   public void setBlue(int blue) {
     this.blue = blue;
   }
+
+  /**
+   * Set the opacity of <tt>this</tt> Color.
+   * 
+   * @param alpha
+   *          the new alpha component, 255 being fully opaque.
+   */
+  public void setAlpha(int alpha) {
+    this.alpha = alpha;
+  }
 }
@@ -0,0 +1,390 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * The connected components (blobs) of the foreground of a picture, with the
+ * area and bounding rectangle of each, and a scanline flood fill.
+ * <p>
+ * A pixel is in the foreground if its luminance is at least 128, as for
+ * <tt>Region.fromMask</tt>, so a thresholded picture can be labelled
+ * directly. Each foreground pixel gets the label of its component, from 1
+ * to the number of components, in the order in which the components are
+ * first met scanning row by row; background pixels get 0.
+ * <p>
+ * Labelling is a two-pass union-find working in the label array itself:
+ * the first pass gives each foreground pixel a link to an earlier pixel of
+ * its component (or to itself), merging components where they touch, and
+ * the second replaces each link by the final label. Links always point
+ * backwards, and are shortened whenever they are followed, so no other
+ * memory is needed and each pass is close to linear. Bands of rows are
+ * labelled in parallel and then merged along the seams between them.
+ */
+public class Components {
+
+  private final int width;
+  private final int height;
+  private final int count;
+
+  /** The label of each pixel, row by row. */
+  private final int[] labels;
+
+  /** The number of pixels of each label, indexed by label. */
+  private final int[] areas;
+
+  /**
+   * The bounds of each label: the left, top, right and bottom pixels at
+   * <tt>4 * label</tt> onwards.
+   */
+  private final int[] bounds;
+
+  private Components(int width, int height, int count, int[] labels) {
+    this.width = width;
+    this.height = height;
+    this.count = count;
+    this.labels = labels;
+    areas = new int[count + 1];
+    bounds = new int[4 * (count + 1)];
+    for (int label = 1; label <= count; label++) {
+      bounds[4 * label] = Integer.MAX_VALUE;
+      bounds[4 * label + 1] = Integer.MAX_VALUE;
+    }
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int label = labels[y * width + x];
+        if (label != 0) {
+          areas[label]++;
+          int b = 4 * label;
+          bounds[b] = Math.min(bounds[b], x);
+          bounds[b + 1] = Math.min(bounds[b + 1], y);
+          bounds[b + 2] = Math.max(bounds[b + 2], x);
+          bounds[b + 3] = Math.max(bounds[b + 3], y);
+        }
+      }
+    }
+  }
+
+  /**
+   * Label the connected components of the foreground of a picture.
+   *
+   * @param picture
+   *          the picture, which is left unchanged
+   * @param eightConnected
+   *          whether pixels touching only at a corner are connected, rather
+   *          than only those sharing an edge
+   * @return the components.
+   * @throws IllegalArgumentException
+   *           if the picture has <tt>Integer.MAX_VALUE</tt> pixels or more
+   */
+  public static Components label(Picture picture, boolean eightConnected) {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    if ((long) width * height >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("picture too large to label");
+    }
+    int[] pixels = picture.raster();
+    int[] labels = new int[width * height];
+    int bands = Parallel.bands(width, height);
+    int[] starts = new int[bands];
+    int[] roots = new int[bands + 1];
+
+    // first pass: link the pixels of each band
+    Parallel.forBands(bands, height, (band, startRow, endRow) -> {
+      starts[band] = startRow;
+      for (int y = startRow; y < endRow; y++) {
+        for (int x = 0; x < width; x++) {
+          int i = y * width + x;
+          if (PackedColor.luminance601(pixels[i]) < 128) {
+            continue;
+          }
+          labels[i] = i + 1;
+          if (x > 0) {
+            join(labels, i, i - 1);
+          }
+          if (y > startRow) {
+            join(labels, i, i - width);
+            if (eightConnected && x > 0) {
+              join(labels, i, i - width - 1);
+            }
+            if (eightConnected && x < width - 1) {
+              join(labels, i, i - width + 1);
+            }
+          }
+        }
+      }
+    });
+
+    // merge along the seams between bands
+    for (int band = 1; band < bands; band++) {
+      int row = starts[band] * width;
+      for (int x = 0; x < width; x++) {
+        int i = row + x;
+        if (labels[i] == 0) {
+          continue;
+        }
+        join(labels, i, i - width);
+        if (eightConnected && x > 0) {
+          join(labels, i, i - width - 1);
+        }
+        if (eightConnected && x < width - 1) {
+          join(labels, i, i - width + 1);
+        }
+      }
+    }
+
+    // second pass: link every pixel straight to its root, counting roots
+    Parallel.forBands(bands, height, (band, startRow, endRow) -> {
+      int first = startRow * width;
+      int found = 0;
+      for (int i = first; i < endRow * width; i++) {
+        if (labels[i] == 0) {
+          continue;
+        }
+        // earlier pixels of the band already link to their root; those of
+        // other bands are only read, as their own band may be linking them
+        int parent = labels[i] - 1;
+        int root = parent >= first ? labels[parent] - 1
+            : root(labels, parent);
+        if (root == i) {
+          found++;
+        }
+        labels[i] = root + 1;
+      }
+      roots[band + 1] = found;
+    });
+    for (int band = 0; band < bands; band++) {
+      roots[band + 1] += roots[band];
+    }
+
+    // number the roots of each band in order, marking them negative
+    Parallel.forBands(bands, height, (band, startRow, endRow) -> {
+      int next = roots[band];
+      for (int i = startRow * width; i < endRow * width; i++) {
+        if (labels[i] == i + 1) {
+          labels[i] = -++next;
+        }
+      }
+    });
+
+    // give every pixel the number of its root
+    Parallel.forBands(bands, height, (band, startRow, endRow) -> {
+      for (int i = startRow * width; i < endRow * width; i++) {
+        int link = labels[i];
+        if (link < 0) {
+          labels[i] = -link;
+        } else if (link > 0) {
+          // roots in other bands may already have been made positive
+          labels[i] = Math.abs(labels[link - 1]);
+        }
+      }
+    });
+    return new Components(width, height, roots[bands], labels);
+  }
+
+  /**
+   * Merge the components of two foreground pixels, making the root with the
+   * smaller index the root of both.
+   */
+  private static void join(int[] links, int i, int j) {
+    if (links[j] == 0) {
+      return;
+    }
+    int a = find(links, i);
+    int b = find(links, j);
+    if (a < b) {
+      links[b] = a + 1;
+    } else if (b < a) {
+      links[a] = b + 1;
+    }
+  }
+
+  /**
+   * Return the index of the root of a pixel's component, halving the path
+   * to it on the way.
+   */
+  private static int find(int[] links, int i) {
+    while (links[i] != i + 1) {
+      int parent = links[i] - 1;
+      links[i] = links[parent];
+      i = parent;
+    }
+    return i;
+  }
+
+  /**
+   * Return the index of the root of a pixel's component without changing
+   * any link.
+   */
+  private static int root(int[] links, int i) {
+    while (links[i] != i + 1) {
+      i = links[i] - 1;
+    }
+    return i;
+  }
+
+  /**
+   * Return the number of components.
+   *
+   * @return the number of components, which is also the largest label.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Return the label of a pixel.
+   *
+   * @param x
+   *          the x-coordinate of the pixel
+   * @param y
+   *          the y-coordinate of the pixel
+   * @return the label of the pixel's component, or 0 for the background.
+   */
+  public int getLabel(int x, int y) {
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      throw new IllegalArgumentException("no pixel at " + x + "," + y);
+    }
+    return labels[y * width + x];
+  }
+
+  /**
+   * Return the labels of every pixel, row by row (the pixel at (x,y) is at
+   * index <tt>y * width + x</tt>).
+   *
+   * @return the labels, which belong to this object and must not be
+   *         modified.
+   */
+  public int[] getLabels() {
+    return labels;
+  }
+
+  /**
+   * Return the number of pixels in a component.
+   *
+   * @param label
+   *          the label of the component, from 1 to <tt>getCount()</tt>
+   * @return the area of the component, in pixels.
+   */
+  public int getArea(int label) {
+    check(label);
+    return areas[label];
+  }
+
+  /**
+   * Return the smallest rectangle holding a component.
+   *
+   * @param label
+   *          the label of the component, from 1 to <tt>getCount()</tt>
+   * @return the bounding rectangle, as a region without a mask.
+   */
+  public Region getBounds(int label) {
+    check(label);
+    int b = 4 * label;
+    return new Region(bounds[b], bounds[b + 1],
+        bounds[b + 2] - bounds[b] + 1, bounds[b + 3] - bounds[b + 1] + 1);
+  }
+
+  /**
+   * Throw an exception if a label does not name a component.
+   */
+  private void check(int label) {
+    if (label < 1 || label > count) {
+      throw new IllegalArgumentException("invalid label " + label);
+    }
+  }
+
+  /**
+   * Replace the colour of the pixels connected to a seed pixel (through
+   * pixels sharing an edge) which have exactly the seed's colour. The fill
+   * works span by span, keeping the spans still to be extended on a stack
+   * of ints rather than recursing, so it cannot overflow the call stack.
+   * The stack holds one entry per pending span, so it stays small for
+   * compact areas but grows with areas which branch into many separate
+   * spans, such as combs.
+   *
+   * @param picture
+   *          the picture to fill, in place
+   * @param x
+   *          the x-coordinate of the seed
+   * @param y
+   *          the y-coordinate of the seed
+   * @param color
+   *          the new colour; its alpha is ignored unless the picture has
+   *          an alpha component
+   * @return the number of pixels filled.
+   */
+  public static int floodFill(Picture picture, int x, int y, Color color) {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    if (!picture.contains(x, y)) {
+      throw new IllegalArgumentException("no pixel at " + x + "," + y);
+    }
+    int replacement = PackedColor.pack(color.getRed(), color.getGreen(),
+        color.getBlue(), picture.hasAlpha() ? color.getAlpha() : 0);
+    int[] pixels = picture.raster();
+    int target = pixels[y * width + x];
+    if (target == replacement) {
+      return 0;
+    }
+
+    int filled = 0;
+    int left = width, top = height, right = -1, bottom = -1;
+    // filled spans whose neighbouring rows are still to be searched, as
+    // (start, end, row) triples
+    int[] stack = new int[3 * 64];
+    int size = 0;
+    int start = x;
+    while (start > 0 && pixels[y * width + start - 1] == target) {
+      start--;
+    }
+    int end = x + 1;
+    while (end < width && pixels[y * width + end] == target) {
+      end++;
+    }
+    Arrays.fill(pixels, y * width + start, y * width + end, replacement);
+    stack[size++] = start;
+    stack[size++] = end;
+    stack[size++] = y;
+    while (size > 0) {
+      int row = stack[--size];
+      int spanEnd = stack[--size];
+      int spanStart = stack[--size];
+      filled += spanEnd - spanStart;
+      left = Math.min(left, spanStart);
+      right = Math.max(right, spanEnd);
+      top = Math.min(top, row);
+      bottom = Math.max(bottom, row + 1);
+      for (int next = row - 1; next <= row + 1; next += 2) {
+        if (next < 0 || next >= height) {
+          continue;
+        }
+        int offset = next * width;
+        int i = spanStart;
+        while (i < spanEnd) {
+          if (pixels[offset + i] != target) {
+            i++;
+            continue;
+          }
+          int from = i;
+          while (from > 0 && pixels[offset + from - 1] == target) {
+            from--;
+          }
+          int to = i + 1;
+          while (to < width && pixels[offset + to] == target) {
+            to++;
+          }
+          Arrays.fill(pixels, offset + from, offset + to, replacement);
+          if (size + 3 > stack.length) {
+            stack = Arrays.copyOf(stack, 2 * stack.length);
+          }
+          stack[size++] = from;
+          stack[size++] = to;
+          stack[size++] = next;
+          i = to;
+        }
+      }
+    }
+    picture.markDirty(left, top, right - left, bottom - top);
+    return filled;
+  }
+}
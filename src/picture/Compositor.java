@@ -0,0 +1,112 @@
+package picture;
+
+/**
+ * Composites one picture over another with the Porter-Duff "over" operator,
+ * for watermarks and overlays.
+ * <p>
+ * Blending works on premultiplied colours held as packed ints, two 8-bit
+ * channels at a time, so each pixel costs a few multiplications and shifts
+ * and no division: dividing by 255 is done exactly with shifts, and turning
+ * a premultiplied colour back into a plain one uses a table of reciprocals.
+ * Opaque and fully transparent overlay pixels, and overlays without an alpha
+ * component, skip the blend; over an opaque base picture the result stays
+ * opaque, so only the colours are blended. Rows are spread over several
+ * cores.
+ */
+public class Compositor {
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private Compositor() {
+  }
+
+  /**
+   * Draw a picture over another, in place. The parts of the overlay which
+   * fall outside the base picture are ignored.
+   *
+   * @param base
+   *          the picture to draw on
+   * @param overlay
+   *          the picture to draw, which is left unchanged
+   * @param x
+   *          the x-coordinate in the base picture of the overlay's top-left
+   *          corner
+   * @param y
+   *          the y-coordinate in the base picture of the overlay's top-left
+   *          corner
+   */
+  public static void over(Picture base, Picture overlay, int x, int y) {
+    int baseWidth = base.getWidth();
+    int overlayWidth = overlay.getWidth();
+    int x0 = Math.max(0, x);
+    int y0 = Math.max(0, y);
+    int width = Math.min(baseWidth, x + overlayWidth) - x0;
+    int height = Math.min(base.getHeight(), y + overlay.getHeight()) - y0;
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+
+    int[] dst = base.getPixels();
+    int[] src = overlay.raster();
+    boolean translucent = overlay.hasAlpha();
+    boolean baseAlpha = base.hasAlpha();
+    // pictures without alpha keep the unused top byte of their pixels clear
+    int opaque = baseAlpha ? 0xff000000 : 0;
+    Parallel.forRows(width, height, (band, startRow, endRow) -> {
+      for (int row = startRow; row < endRow; row++) {
+        int s = (y0 + row - y) * overlayWidth + x0 - x;
+        int d = (y0 + row) * baseWidth + x0;
+        if (!translucent) {
+          for (int i = 0; i < width; i++) {
+            dst[d + i] = opaque | (src[s + i] & 0xffffff);
+          }
+        } else if (!baseAlpha) {
+          overOpaque(src, s, dst, d, width);
+        } else {
+          over(src, s, dst, d, width);
+        }
+      }
+    });
+  }
+
+  /**
+   * Draw a row of translucent pixels over a row of opaque ones.
+   */
+  private static void overOpaque(int[] src, int s, int[] dst, int d,
+      int length) {
+    for (int i = 0; i < length; i++) {
+      int p = src[s + i];
+      int alpha = p >>> 24;
+      if (alpha == 255) {
+        dst[d + i] = p & 0xffffff;
+      } else if (alpha != 0) {
+        // the result stays opaque, so only the colours need blending
+        int q = dst[d + i];
+        int rb = PackedColor.scaleLanes(p & 0xff00ff, alpha)
+            + PackedColor.scaleLanes(q & 0xff00ff, 255 - alpha);
+        int g = PackedColor.scaleLanes((p >> 8) & 0xff, alpha)
+            + PackedColor.scaleLanes((q >> 8) & 0xff, 255 - alpha);
+        dst[d + i] = rb | (g << 8);
+      }
+    }
+  }
+
+  /**
+   * Draw a row of translucent pixels over a row of translucent ones.
+   */
+  private static void over(int[] src, int s, int[] dst, int d, int length) {
+    for (int i = 0; i < length; i++) {
+      int p = src[s + i];
+      int alpha = p >>> 24;
+      int q = dst[d + i];
+      if (alpha == 255 || q >>> 24 == 0) {
+        dst[d + i] = p;
+      } else if (alpha != 0) {
+        int result = PackedColor.premultiply(p) + PackedColor.multiply(
+            PackedColor.premultiply(q), 255 - alpha);
+        dst[d + i] = PackedColor.unpremultiply(result);
+      }
+    }
+  }
+}
@@ -0,0 +1,327 @@
+package picture;
+
+/**
+ * The distribution of colour component intensities within a picture.
+ * Counts are kept for the red, green and blue components and for the
+ * luminance of each pixel, in <tt>int[256]</tt> arrays indexed by intensity.
+ * A histogram is computed in a single pass over the rows of a picture, with
+ * each band of rows counted into its own partial histogram on its own core
+ * and the partial histograms summed at the end, so it needs no memory beyond
+ * the counts themselves.
+ * The lookup tables built from a histogram drive the levels, equalize and
+ * threshold operations in <tt>Process</tt>.
+ */
+public class Histogram {
+
+  /** The index of the red counts. */
+  public static final int RED = 0;
+
+  /** The index of the green counts. */
+  public static final int GREEN = 1;
+
+  /** The index of the blue counts. */
+  public static final int BLUE = 2;
+
+  /** The index of the luminance counts. */
+  public static final int LUMINANCE = 3;
+
+  /** The number of distinct intensities. */
+  private static final int LEVELS = 256;
+
+  /** The counts for each channel, indexed by intensity. */
+  private final int[][] counts;
+
+  /** The number of pixels counted. */
+  private final long total;
+
+  /**
+   * Construct a histogram from its counts.
+   */
+  private Histogram(int[][] counts, long total) {
+    this.counts = counts;
+    this.total = total;
+  }
+
+  /**
+   * Compute the histogram of a picture.
+   *
+   * @param picture
+   *          the picture to examine
+   * @return the histogram of every pixel of the picture
+   */
+  public static Histogram of(Picture picture) {
+    return of(picture, new Region(0, 0, picture.getWidth(),
+        picture.getHeight()));
+  }
+
+  /**
+   * Compute the histograms of the pixels of a picture within a region.
+   *
+   * @param picture
+   *          the picture to examine
+   * @param region
+   *          the pixels to count
+   * @return the histograms of the selected pixels.
+   */
+  public static Histogram of(Picture picture, Region region) {
+    int width = picture.getWidth();
+    Region clipped = region.clip(width, picture.getHeight());
+    if (clipped == null) {
+      return new Histogram(new int[4][LEVELS], 0);
+    }
+    int[] pixels = picture.raster();
+    int top = clipped.getY();
+    int bands = Parallel.bands(clipped.getWidth(), clipped.getHeight());
+    int[][][] partials = new int[bands][][];
+    long[] totals = new long[bands];
+
+    Parallel.forBands(bands, clipped.getHeight(), (band, startRow, endRow) -> {
+      int[][] partial = new int[4][LEVELS];
+      clipped.forSpans(top + startRow, top + endRow, (y, startX, endX) -> {
+        count(pixels, y * width + startX, y * width + endX, partial);
+        totals[band] += endX - startX;
+      });
+      partials[band] = partial;
+    });
+
+    int[][] counts = partials[0];
+    long total = totals[0];
+    for (int b = 1; b < partials.length; b++) {
+      total += totals[b];
+      for (int c = 0; c < counts.length; c++) {
+        for (int v = 0; v < LEVELS; v++) {
+          counts[c][v] += partials[b][c][v];
+        }
+      }
+    }
+    return new Histogram(counts, total);
+  }
+
+  /**
+   * Count the pixels in a range of the raster.
+   */
+  private static void count(int[] pixels, int from, int to, int[][] counts) {
+    int[] red = counts[RED];
+    int[] green = counts[GREEN];
+    int[] blue = counts[BLUE];
+    int[] luminance = counts[LUMINANCE];
+    for (int i = from; i < to; i++) {
+      int rgb = pixels[i];
+      int r = (rgb >> 16) & 0xff;
+      int g = (rgb >> 8) & 0xff;
+      int b = rgb & 0xff;
+      red[r]++;
+      green[g]++;
+      blue[b]++;
+      luminance[PackedColor.luminance601(rgb)]++;
+    }
+  }
+
+  /**
+   * Return the number of pixels counted.
+   *
+   * @return the total of the counts of any one channel.
+   */
+  public long getTotal() {
+    return total;
+  }
+
+  /**
+   * Return the number of pixels with each intensity of a channel.
+   *
+   * @param channel
+   *          one of {@link #RED}, {@link #GREEN}, {@link #BLUE} or
+   *          {@link #LUMINANCE}
+   * @return a copy of the 256 counts of the channel.
+   */
+  public int[] getCounts(int channel) {
+    return counts[channel].clone();
+  }
+
+  /**
+   * Return the lowest intensity of a channel present in the picture.
+   *
+   * @param channel
+   *          the channel to examine
+   * @return the minimum intensity, or 0 if the picture is empty.
+   */
+  public int min(int channel) {
+    int[] c = counts[channel];
+    for (int v = 0; v < LEVELS; v++) {
+      if (c[v] != 0) {
+        return v;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Return the highest intensity of a channel present in the picture.
+   *
+   * @param channel
+   *          the channel to examine
+   * @return the maximum intensity, or 0 if the picture is empty.
+   */
+  public int max(int channel) {
+    int[] c = counts[channel];
+    for (int v = LEVELS - 1; v >= 0; v--) {
+      if (c[v] != 0) {
+        return v;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Return the mean intensity of a channel.
+   *
+   * @param channel
+   *          the channel to examine
+   * @return the mean intensity, or 0 if the picture is empty.
+   */
+  public double mean(int channel) {
+    if (total == 0) {
+      return 0;
+    }
+    long sum = 0;
+    int[] c = counts[channel];
+    for (int v = 0; v < LEVELS; v++) {
+      sum += (long) v * c[v];
+    }
+    return (double) sum / total;
+  }
+
+  /**
+   * Return the standard deviation of the intensity of a channel.
+   *
+   * @param channel
+   *          the channel to examine
+   * @return the standard deviation, or 0 if the picture is empty.
+   */
+  public double standardDeviation(int channel) {
+    if (total == 0) {
+      return 0;
+    }
+    double mean = mean(channel);
+    double sum = 0;
+    int[] c = counts[channel];
+    for (int v = 0; v < LEVELS; v++) {
+      sum += (v - mean) * (v - mean) * c[v];
+    }
+    return Math.sqrt(sum / total);
+  }
+
+  /**
+   * Return the median intensity of a channel.
+   *
+   * @param channel
+   *          the channel to examine
+   * @return the lowest intensity at or below which half of the pixels lie.
+   */
+  public int median(int channel) {
+    long half = (total + 1) / 2;
+    long seen = 0;
+    int[] c = counts[channel];
+    for (int v = 0; v < LEVELS; v++) {
+      seen += c[v];
+      if (seen >= half) {
+        return v;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Compute the threshold which best separates a channel into two classes,
+   * using Otsu's method (maximising the between-class variance).
+   *
+   * @param channel
+   *          the channel to examine
+   * @return the threshold; intensities above it form the bright class.
+   */
+  public int otsuThreshold(int channel) {
+    int[] c = counts[channel];
+    long sumAll = 0;
+    for (int v = 0; v < LEVELS; v++) {
+      sumAll += (long) v * c[v];
+    }
+    long weightBelow = 0;
+    long sumBelow = 0;
+    double bestVariance = -1;
+    int threshold = 0;
+    for (int t = 0; t < LEVELS; t++) {
+      weightBelow += c[t];
+      if (weightBelow == 0) {
+        continue;
+      }
+      long weightAbove = total - weightBelow;
+      if (weightAbove == 0) {
+        break;
+      }
+      sumBelow += (long) t * c[t];
+      double meanBelow = (double) sumBelow / weightBelow;
+      double meanAbove = (double) (sumAll - sumBelow) / weightAbove;
+      double variance = (double) weightBelow * weightAbove
+          * (meanBelow - meanAbove) * (meanBelow - meanAbove);
+      if (variance > bestVariance) {
+        bestVariance = variance;
+        threshold = t;
+      }
+    }
+    return threshold;
+  }
+
+  /**
+   * Build the lookup table which stretches the intensities of a channel
+   * linearly so that its minimum becomes 0 and its maximum becomes 255.
+   *
+   * @param channel
+   *          the channel to stretch
+   * @return a table of 256 output intensities indexed by input intensity.
+   */
+  public int[] levelsTable(int channel) {
+    int low = min(channel);
+    int high = max(channel);
+    int[] table = new int[LEVELS];
+    for (int v = 0; v < LEVELS; v++) {
+      if (high <= low) {
+        table[v] = v;
+      } else if (v <= low) {
+        table[v] = 0;
+      } else if (v >= high) {
+        table[v] = 255;
+      } else {
+        table[v] = ((v - low) * 255 + (high - low) / 2) / (high - low);
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Build the lookup table which equalizes the intensities of a channel,
+   * mapping each intensity through the cumulative distribution so that the
+   * output intensities are spread as evenly as possible.
+   *
+   * @param channel
+   *          the channel to equalize
+   * @return a table of 256 output intensities indexed by input intensity.
+   */
+  public int[] equalizeTable(int channel) {
+    int[] c = counts[channel];
+    int[] table = new int[LEVELS];
+    long lowest = c[min(channel)];
+    long cumulative = 0;
+    for (int v = 0; v < LEVELS; v++) {
+      cumulative += c[v];
+      if (total == lowest) {
+        table[v] = v;
+      } else if (cumulative <= lowest) {
+        table[v] = 0;
+      } else {
+        table[v] = (int) (((cumulative - lowest) * 255 + (total - lowest) / 2)
+            / (total - lowest));
+      }
+    }
+    return table;
+  }
+}
@@ -1,5 +1,12 @@
 package picture;
 
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+
 /**
  * The main program which allows a user to compute image transformations.
  */
@@ -8,15 +15,150 @@ public class Main {
   /**
    * The program will be invoked with command line arguments specifying which
    * operation to perform and then the input and output image locations.
+   * The operation may be preceded by <tt>--roi x,y,width,height</tt> or
+   * <tt>--mask location</tt> to restrict it to a rectangle or to the pixels
+   * of a mask picture with a luminance of at least 128.
    *
    * @param args
    *          the instructions for the transformation
    */
   public static void main(String[] args) {
-    Picture initialPicture = getPicture(args);
-    Picture modifiedPicture = applyProcess(initialPicture, args);
-    savePicture(modifiedPicture, args);
+    if (args[0].equals("stats")) {
+      printStats(args);
+      return;
+    }
+    if (args[0].equals("components")) {
+      printComponents(args);
+      return;
+    }
+    if (args[0].equals("pyramid")) {
+      writePyramid(args);
+      return;
+    }
+
+    ResultCache cache = ResultCache.fromSystemProperties();
+    String key = null;
+    Path destination = Paths.get(args[args.length - 1]);
+    if (cache != null) {
+      key = cache.key(Arrays.copyOf(args, args.length - 1), inputLocations(args));
+      if (key != null && cache.copyTo(key, destination)) {
+        return;
+      }
+    }
+
+    int options = countOptions(args);
+    Region region = parseRegion(args, options);
+    String[] command = Arrays.copyOfRange(args, options, args.length);
+
+    Metrics.Stage decode = Metrics.start("decode", command[0]);
+    Picture initialPicture = getPicture(command);
+    decode.end(initialPicture);
 
+    Metrics.Stage process = Metrics.start("process", command[0]);
+    Picture modifiedPicture;
+    try {
+      modifiedPicture = applyProcess(initialPicture, command, region);
+    } catch (IllegalArgumentException e) {
+      process.end(null);
+      System.err.println(e.getMessage());
+      return;
+    }
+    process.end(modifiedPicture);
+
+    Metrics.Stage encode = Metrics.start("encode", command[0]);
+    boolean saved = savePicture(modifiedPicture, command);
+    encode.end(modifiedPicture);
+    RasterPool.release(modifiedPicture);
+    if (initialPicture != modifiedPicture) {
+      RasterPool.release(initialPicture);
+    }
+
+    if (saved && key != null) {
+      try {
+        cache.store(key, destination);
+      } catch (IOException e) {
+        System.err.println("could not cache result: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Finds which of the command line arguments, excluding the destination,
+   * are the locations of input pictures.
+   *
+   * @param args
+   *          the instructions for the transformation
+   *
+   * @return for each argument but the last, whether it is an input location
+   */
+  private static boolean[] inputLocations(String[] args) {
+    boolean[] inputs = new boolean[args.length - 1];
+    int options = countOptions(args);
+    for (int i = 0; i < options; i += 2) {
+      inputs[i + 1] = args[i].equals("--mask");
+    }
+    int first;
+    switch (args[options]) {
+      case "blend": first = options + 1; break;
+      case "mosaic": first = options + 2; break;
+      case "overlay": first = options + 3; break;
+      default: first = args.length - 2;
+    }
+    for (int i = first; i < inputs.length; i++) {
+      inputs[i] = true;
+    }
+    return inputs;
+  }
+
+  /**
+   * Counts the arguments taken up by the options before the operation.
+   *
+   * @param args
+   *          the instructions for the transformation
+   *
+   * @return the index of the operation
+   */
+  private static int countOptions(String[] args) {
+    int options = 0;
+    while (args[options].startsWith("--")) {
+      options += 2;
+    }
+    return options;
+  }
+
+  /**
+   * Builds the region of interest from the options before the operation.
+   *
+   * @param args
+   *          the instructions for the transformation
+   * @param options
+   *          the number of arguments taken up by the options
+   *
+   * @return the region to process, or null to process the whole picture
+   */
+  private static Region parseRegion(String[] args, int options) {
+    Region region = null;
+    for (int i = 0; i < options; i += 2) {
+      switch (args[i]) {
+        case "--roi":
+          String[] bounds = args[i + 1].split(",");
+          region = new Region(Integer.parseInt(bounds[0]),
+              Integer.parseInt(bounds[1]), Integer.parseInt(bounds[2]),
+              Integer.parseInt(bounds[3]));
+          break;
+        case "--mask":
+          Picture mask = Utils.loadPicture(args[i + 1]);
+          if (mask == null) {
+            System.err.println("invalid mask location");
+          } else {
+            region = Region.fromMask(mask);
+          }
+          break;
+        default:
+          System.err.println("unknown option " + args[i]);
+      }
+    }
+    return region;
   }
 
   /**
@@ -38,14 +180,96 @@ public class Main {
     return temp;
   }
 
+  /**
+   * Prints the size of the picture at the location given as the last
+   * argument, followed by the minimum, maximum, mean, standard deviation and
+   * median of each colour channel and the Otsu threshold of its luminance.
+   *
+   * @param args
+   *          the instructions, ending with the location of the picture
+   */
+  private static void printStats(String[] args) {
+    Picture picture = Utils.loadPicture(args[args.length - 1]);
+    if (picture == null) {
+      System.err.println("invalid location");
+      return;
+    }
+    Histogram histogram = Histogram.of(picture);
+    String[] names = {"red", "green", "blue", "luminance"};
+    System.out.println("size " + picture.getWidth() + "x" + picture.getHeight());
+    System.out.println("channel min max mean stddev median");
+    for (int c = 0; c < names.length; c++) {
+      System.out.println(String.format(Locale.ROOT, "%s %d %d %.2f %.2f %d",
+          names[c], histogram.min(c), histogram.max(c), histogram.mean(c),
+          histogram.standardDeviation(c), histogram.median(c)));
+    }
+    System.out.println("otsu "
+        + histogram.otsuThreshold(Histogram.LUMINANCE));
+  }
+
+  /**
+   * Prints the number of connected components of the bright pixels (those
+   * with a luminance of at least 128) of the picture at the location given
+   * as the last argument, followed by the area and bounding rectangle of
+   * each. Pixels touching at a corner are connected if the first detail is
+   * 8.
+   *
+   * @param args
+   *          the instructions, ending with the location of the picture
+   */
+  private static void printComponents(String[] args) {
+    Picture picture = Utils.loadPicture(args[args.length - 1]);
+    if (picture == null) {
+      System.err.println("invalid location");
+      return;
+    }
+    Components components = Components.label(picture,
+        args.length > 2 && args[1].equals("8"));
+    System.out.println("components " + components.getCount());
+    System.out.println("label area x y width height");
+    for (int label = 1; label <= components.getCount(); label++) {
+      Region bounds = components.getBounds(label);
+      System.out.println(label + " " + components.getArea(label) + " "
+          + bounds.getX() + " " + bounds.getY() + " " + bounds.getWidth()
+          + " " + bounds.getHeight());
+    }
+  }
+
+  /**
+   * Writes the pyramid of the picture at the second to last argument into
+   * the directory given as the last argument, with tiles of the size given
+   * as the first detail.
+   *
+   * @param args
+   *          the instructions, ending with the picture and the directory
+   */
+  private static void writePyramid(String[] args) {
+    Picture picture = Utils.loadPicture(args[args.length - 2]);
+    if (picture == null) {
+      System.err.println("invalid location");
+      return;
+    }
+    try {
+      Pyramid.write(picture, Integer.parseInt(args[1]),
+          Paths.get(args[args.length - 1]));
+    } catch (IOException e) {
+      System.err.println("invalid destination: " + e.getMessage());
+    }
+    RasterPool.release(picture);
+  }
+
   /**
    * Saves the transformed picture to the given location.
+   *
+   * @return true iff the picture was saved successfully
    */
-  private static void savePicture(Picture modifiedPicture, String[] args) {
+  private static boolean savePicture(Picture modifiedPicture, String[] args) {
     String destination = args[args.length - 1];
     if(!Utils.savePicture(modifiedPicture, destination)) {
       System.err.println("invalid destination");
+      return false;
     }
+    return true;
   }
 
   /**
@@ -56,12 +280,16 @@ public class Main {
    *          the initial Picture object
    * @param args
    *          the specifications for the transformation
+   * @param region
+   *          the region to transform, or null to transform the whole picture
    *
    * @return the transformed Picture object
    */
-  private static Picture applyProcess(Picture picture, String[] args) {
+  private static Picture applyProcess(Picture picture, String[] args,
+      Region region) {
     String process = args[0];
     Process processPicture = new Process(picture);
+    processPicture.setRegion(region);
     switch (process) {
       case "invert": processPicture.invert(); break;
       case "grayscale": processPicture.grayscale(); break;
@@ -69,11 +297,95 @@ public class Main {
       case "flip": flip(args[1], processPicture); break;
       case "blend": blend(args, processPicture); break;
       case "blur": processPicture.blur(); break;
+      case "median": processPicture.median(Integer.parseInt(args[1])); break;
+      case "erode": processPicture.erode(Integer.parseInt(args[1])); break;
+      case "dilate": processPicture.dilate(Integer.parseInt(args[1])); break;
+      case "levels": processPicture.autoLevels(); break;
+      case "equalize": processPicture.equalize(); break;
+      case "threshold": threshold(args, processPicture); break;
+      case "brightness":
+        processPicture.brightness(Integer.parseInt(args[1])); break;
+      case "contrast":
+        processPicture.contrast(Double.parseDouble(args[1])); break;
+      case "gamma": processPicture.gamma(Double.parseDouble(args[1])); break;
+      case "grade": processPicture.apply(parseChain(args[1])); break;
+      case "resize": resize(args, processPicture); break;
+      case "transform": transform(args, processPicture); break;
       case "mosaic": mosaic(args, processPicture); break;
+      case "overlay": overlay(args, processPicture); break;
+      case "fill": fill(args, processPicture); break;
     }
     return processPicture.getPicture();
   }
 
+  /**
+   * Applies a threshold, either at the level given as the first detail or,
+   * if there is none, at the level chosen by Otsu's method.
+   *
+   * @param args
+   *          the command line arguments
+   * @param processPicture
+   *          the Process object on which the transformation will be applied
+   */
+  private static void threshold(String[] args, Process processPicture) {
+    if (args.length > 3) {
+      processPicture.threshold(Integer.parseInt(args[1]));
+    } else {
+      processPicture.threshold();
+    }
+  }
+
+  /**
+   * Parses a chain of point operations, such as
+   * <tt>brightness=10,contrast=1.2,grayscale</tt>.
+   * The operations are invert, grayscale, luminance, brightness=delta,
+   * contrast=factor, gamma=exponent and threshold=level.
+   *
+   * @param detail
+   *          the comma separated operations, in the order they are applied
+   *
+   * @return the compiled chain of operations
+   * @throws IllegalArgumentException
+   *           if any operation is unknown, so that nothing is saved
+   */
+  private static PointChain parseChain(String detail) {
+    PointChain chain = new PointChain();
+    for (String step : detail.split(",")) {
+      String[] parts = step.split("=", 2);
+      switch (parts[0]) {
+        case "invert": chain.invert(); break;
+        case "grayscale": chain.grayscale(); break;
+        case "luminance": chain.luminance(); break;
+        case "brightness": chain.brightness(Integer.parseInt(parts[1])); break;
+        case "contrast": chain.contrast(Double.parseDouble(parts[1])); break;
+        case "gamma": chain.gamma(Double.parseDouble(parts[1])); break;
+        case "threshold": chain.threshold(Integer.parseInt(parts[1])); break;
+        default:
+          throw new IllegalArgumentException("unknown operation " + parts[0]);
+      }
+    }
+    return chain;
+  }
+
+  /**
+   * Resizes the picture to the width and height given as the first two
+   * details, using the filter named by the optional third detail (nearest,
+   * bilinear, bicubic or lanczos3; bicubic if omitted).
+   *
+   * @param args
+   *          the command line arguments
+   * @param processPicture
+   *          the Process object on which the transformation will be applied
+   */
+  private static void resize(String[] args, Process processPicture) {
+    Resampler.Filter filter = Resampler.Filter.BICUBIC;
+    if (args.length > 5) {
+      filter = Resampler.Filter.valueOf(args[3].toUpperCase(Locale.ROOT));
+    }
+    processPicture.resize(Integer.parseInt(args[1]),
+        Integer.parseInt(args[2]), filter);
+  }
+
   /**
    * Applies a certain rotation transformation.
    *
@@ -88,6 +400,36 @@ public class Main {
       case "90": processPicture.rotate90(); break;
       case "180": processPicture.rotate180(); break;
       case "270": processPicture.rotate270(); break;
+      default: processPicture.rotate(Double.parseDouble(detail));
+    }
+  }
+
+  /**
+   * Applies the affine transformation whose matrix entries m00, m10, m01,
+   * m11, m02 and m12 are given as the first six details. If a width and
+   * height follow, the result is drawn on a canvas of that size, keeping
+   * the translation m02, m12; otherwise it is fitted to the transformed
+   * picture, so a translation is refused rather than silently dropped.
+   *
+   * @param args
+   *          the command line arguments
+   * @param processPicture
+   *          the Process object on which the transformation will be applied
+   */
+  private static void transform(String[] args, Process processPicture) {
+    double[] matrix = new double[6];
+    for (int i = 0; i < matrix.length; i++) {
+      matrix[i] = Double.parseDouble(args[i + 1]);
+    }
+    AffineTransform transform = new AffineTransform(matrix);
+    if (args.length > 9) {
+      processPicture.transform(transform, Integer.parseInt(args[7]),
+          Integer.parseInt(args[8]));
+    } else if (matrix[4] != 0 || matrix[5] != 0) {
+      throw new IllegalArgumentException(
+          "a translation needs the width and height of the result");
+    } else {
+      processPicture.transform(transform);
     }
   }
 
@@ -131,6 +473,47 @@ public class Main {
     processPicture.blend(pictures);
   }
 
+  /**
+   * Loads the overlay named on the command line and draws it over the
+   * picture at the given position.
+   *
+   * @param args
+   *          the command line arguments, giving the x- and y-coordinates of
+   *          the overlay followed by its location
+   * @param processPicture
+   *          the Process object on which the transformation will be applied
+   */
+  private static void overlay(String[] args, Process processPicture) {
+    Picture overlay = Utils.loadPicture(args[3]);
+    if(overlay == null) {
+      System.err.println("invalid location");
+      return;
+    }
+    processPicture.overlay(overlay, Integer.parseInt(args[1]),
+        Integer.parseInt(args[2]));
+  }
+
+  /**
+   * Flood fills from the pixel at the position given as the first two
+   * details with the colour given in hexadecimal (<tt>rrggbb</tt> or
+   * <tt>aarrggbb</tt>) as the third.
+   *
+   * @param args
+   *          the command line arguments
+   * @param processPicture
+   *          the Process object on which the transformation will be applied
+   */
+  private static void fill(String[] args, Process processPicture) {
+    int argb = (int) Long.parseLong(args[3], 16);
+    if (args[3].length() <= 6) {
+      argb |= 0xff000000;
+    }
+    processPicture.floodFill(Integer.parseInt(args[1]),
+        Integer.parseInt(args[2]), new Color(PackedColor.red(argb),
+            PackedColor.green(argb), PackedColor.blue(argb),
+            PackedColor.alpha(argb)));
+  }
+
   /**
    * Loads all the pictures from the command line arguments and applies the
    * mosaic transformation.
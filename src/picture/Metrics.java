@@ -0,0 +1,321 @@
+package picture;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Records how long each stage of a run (decode, process, encode) takes.
+ * Every stage is committed as a <tt>picture.Stage</tt> JFR event, so it shows
+ * up in any flight recording. When the <tt>picture.metrics</tt> system
+ * property is set, each stage is also written as one line of JSON to the
+ * location it names: either <tt>stderr</tt>, <tt>stdout</tt> or a file which
+ * is appended to. The event and the JSON carry the same measurements.
+ * <p>
+ * The bytes allocated by a stage are those allocated by the thread running
+ * it and by every thread which ran bands or tiles for it through
+ * <tt>Parallel</tt> or <tt>TileScheduler</tt>; anything else those pool
+ * threads run meanwhile is counted too. The peak raster bytes are the most
+ * bytes of raster handed out by the <tt>RasterPool</tt> and not yet
+ * released at any time during the stage, including rasters which were
+ * already in use when it started. Each stage measures its own peak, but
+ * stages running at the same time on different threads share the pool and
+ * the pool threads, so their figures overlap.
+ * <p>
+ * With the property unset and no recording running, a stage costs a couple
+ * of field reads.
+ */
+public final class Metrics {
+
+  /**
+   * Where the JSON lines go, or null if JSON output is disabled.
+   */
+  private static final String TARGET = System.getProperty("picture.metrics");
+
+  /**
+   * Whether JSON output is enabled.
+   */
+  static final boolean ENABLED = TARGET != null;
+
+  /**
+   * The number of stages being measured, while which pool threads record
+   * that they worked for them.
+   */
+  private static volatile int measuring;
+
+  /**
+   * The ids of the pool threads which did work while a stage was being
+   * measured.
+   */
+  private static final Set<Long> WORKERS = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private Metrics() {
+  }
+
+  /**
+   * Start timing a stage.
+   *
+   * @param stage
+   *          the name of the stage, such as "decode"
+   * @param operation
+   *          the operation the run is performing
+   * @return the started stage, which must be ended with
+   *         {@link Stage#end(Picture)}
+   */
+  public static Stage start(String stage, String operation) {
+    return new Stage(stage, operation);
+  }
+
+  /**
+   * Record that the calling thread is doing work for the stages being
+   * measured, if any. Called by the workers of <tt>Parallel</tt> and
+   * <tt>TileScheduler</tt>.
+   */
+  static void working() {
+    if (measuring > 0) {
+      WORKERS.add(Thread.currentThread().getId());
+    }
+  }
+
+  /**
+   * Return the bean reporting allocations per thread, or null if the JVM
+   * has none.
+   */
+  private static com.sun.management.ThreadMXBean allocationBean() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean allocations =
+          (com.sun.management.ThreadMXBean) bean;
+      if (allocations.isThreadAllocatedMemorySupported()
+          && allocations.isThreadAllocatedMemoryEnabled()) {
+        return allocations;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return the bytes allocated so far by every live thread, by thread id,
+   * or null if the JVM cannot tell.
+   */
+  private static Map<Long, Long> allocatedBytes() {
+    com.sun.management.ThreadMXBean bean = allocationBean();
+    if (bean == null) {
+      return null;
+    }
+    long[] ids = bean.getAllThreadIds();
+    long[] bytes = bean.getThreadAllocatedBytes(ids);
+    Map<Long, Long> allocated = new HashMap<>();
+    for (int i = 0; i < ids.length; i++) {
+      if (bytes[i] >= 0) {
+        allocated.put(ids[i], bytes[i]);
+      }
+    }
+    return allocated;
+  }
+
+  /**
+   * Return the bytes allocated since a snapshot by the calling thread and
+   * the pool threads which worked for it. Threads started after the
+   * snapshot count from zero; threads which ended since are lost.
+   */
+  private static long allocatedSince(Map<Long, Long> start) {
+    com.sun.management.ThreadMXBean bean = allocationBean();
+    if (bean == null || start == null) {
+      return -1;
+    }
+    Set<Long> threads = new HashSet<>(WORKERS);
+    threads.add(Thread.currentThread().getId());
+    long[] ids = threads.stream().mapToLong(Long::longValue).toArray();
+    long[] bytes = bean.getThreadAllocatedBytes(ids);
+    long total = 0;
+    for (int i = 0; i < ids.length; i++) {
+      if (bytes[i] >= 0) {
+        total += bytes[i] - start.getOrDefault(ids[i], 0L);
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Escape a string for use inside a JSON string literal.
+   */
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /**
+   * Write a line of JSON to the configured target.
+   */
+  private static synchronized void emit(String line) {
+    if ("stderr".equals(TARGET) || "stdout".equals(TARGET)) {
+      PrintStream out = "stderr".equals(TARGET) ? System.err : System.out;
+      out.println(line);
+      return;
+    }
+    try (Writer out = new FileWriter(TARGET, true)) {
+      out.write(line);
+      out.write(System.lineSeparator());
+    } catch (IOException e) {
+      System.err.println("could not write metrics: " + e.getMessage());
+    }
+  }
+
+  /**
+   * A single timed stage of a run.
+   */
+  public static final class Stage {
+
+    private final String stage;
+    private final String operation;
+    private final StageEvent event = new StageEvent();
+    private final boolean measured;
+    private final long startNanos;
+    private final Map<Long, Long> startAllocated;
+    private final RasterPool.Peak peak;
+    private final long startHits;
+    private final long startMisses;
+
+    private Stage(String stage, String operation) {
+      this.stage = stage;
+      this.operation = operation;
+      event.begin();
+      measured = ENABLED || event.isEnabled();
+      if (measured) {
+        synchronized (Metrics.class) {
+          if (measuring++ == 0) {
+            WORKERS.clear();
+          }
+        }
+        startAllocated = allocatedBytes();
+        peak = RasterPool.startPeak();
+        startHits = RasterPool.getHits();
+        startMisses = RasterPool.getMisses();
+      } else {
+        startAllocated = null;
+        peak = null;
+        startHits = 0;
+        startMisses = 0;
+      }
+      startNanos = System.nanoTime();
+    }
+
+    /**
+     * Finish the stage and report it.
+     *
+     * @param picture
+     *          the picture the stage produced, or consumed if it produces
+     *          none, used for the pixel count; may be null if the stage
+     *          failed
+     */
+    public void end(Picture picture) {
+      long nanos = System.nanoTime() - startNanos;
+      long pixels = picture == null
+          ? 0 : (long) picture.getWidth() * picture.getHeight();
+      event.end();
+      if (!measured) {
+        return;
+      }
+      long allocated = allocatedSince(startAllocated);
+      synchronized (Metrics.class) {
+        measuring--;
+      }
+      long peakBytes = RasterPool.endPeak(peak);
+      long hits = RasterPool.getHits() - startHits;
+      long misses = RasterPool.getMisses() - startMisses;
+      long retained = RasterPool.getRetainedBytes();
+      double seconds = nanos / 1e9;
+      double throughput = seconds > 0 ? pixels / seconds : 0.0;
+      if (event.shouldCommit()) {
+        event.stage = stage;
+        event.operation = operation;
+        event.nanos = nanos;
+        event.pixels = pixels;
+        event.pixelsPerSecond = throughput;
+        event.allocatedBytes = allocated;
+        event.peakRasterBytes = peakBytes;
+        event.poolHits = hits;
+        event.poolMisses = misses;
+        event.poolRetainedBytes = retained;
+        event.commit();
+      }
+      if (ENABLED) {
+        emit(String.format(Locale.ROOT,
+            "{\"stage\":\"%s\",\"operation\":\"%s\",\"nanos\":%d,"
+            + "\"pixels\":%d,\"pixelsPerSecond\":%.1f,"
+            + "\"allocatedBytes\":%d,\"peakRasterBytes\":%d,"
+            + "\"poolHits\":%d,\"poolMisses\":%d,\"poolRetainedBytes\":%d}",
+            escape(stage), escape(operation), nanos, pixels, throughput,
+            allocated, peakBytes, hits, misses, retained));
+      }
+    }
+  }
+
+  /**
+   * The flight recorder event committed for every stage.
+   */
+  @Name("picture.Stage")
+  @Label("Picture Stage")
+  @Category("Picture")
+  @Description("One stage (decode, process or encode) of a picture run")
+  static class StageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Nanoseconds")
+    @Description("Wall time of the stage")
+    @Timespan(Timespan.NANOSECONDS)
+    long nanos;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Pixels per Second")
+    double pixelsPerSecond;
+
+    @Label("Allocated Bytes")
+    @Description("Heap allocated by the stage's thread and its pool workers,"
+        + " or -1 if unknown")
+    @DataAmount
+    long allocatedBytes;
+
+    @Label("Peak Raster Bytes")
+    @Description("Most raster bytes in use at once during the stage")
+    @DataAmount
+    long peakRasterBytes;
+
+    @Label("Pool Hits")
+    long poolHits;
+
+    @Label("Pool Misses")
+    long poolMisses;
+
+    @Label("Pool Retained Bytes")
+    @DataAmount
+    long poolRetainedBytes;
+  }
+}
@@ -0,0 +1,275 @@
+package picture;
+
+/**
+ * Operations on colours packed into an int as <tt>0xAARRGGBB</tt>, the
+ * format of picture rasters, so that pixels can be worked on without
+ * creating <tt>Color</tt> objects.
+ * <p>
+ * Where every component gets the same treatment, the components are worked
+ * on two at a time: red and blue, then alpha and green, each pair held in
+ * the low bytes of the two 16-bit halves of an int. Division by 255 is done
+ * by multiplying by a reciprocal and shifting.
+ */
+public final class PackedColor {
+
+  /** The red and blue components, or alpha and green once shifted down. */
+  private static final int LANES = 0xff00ff;
+
+  /** The bit above each component of a pair, set on overflow. */
+  private static final int CARRIES = 0x1000100;
+
+  /**
+   * For each alpha value a, <tt>2^16 * 255 / a</tt>, which turns a
+   * premultiplied component c back into <tt>c * 255 / a</tt>.
+   */
+  private static final int[] UNPREMULTIPLY = new int[256];
+
+  static {
+    for (int a = 1; a < 256; a++) {
+      UNPREMULTIPLY[a] = ((255 << 16) + a / 2) / a;
+    }
+  }
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private PackedColor() {
+  }
+
+  /**
+   * Pack an opaque colour.
+   *
+   * @param red
+   *          the red component, from 0 to 255
+   * @param green
+   *          the green component, from 0 to 255
+   * @param blue
+   *          the blue component, from 0 to 255
+   * @return the packed colour, with an alpha of 255.
+   */
+  public static int pack(int red, int green, int blue) {
+    return pack(red, green, blue, 255);
+  }
+
+  /**
+   * Pack a colour. Only the low 8 bits of each component are used.
+   *
+   * @param red
+   *          the red component, from 0 to 255
+   * @param green
+   *          the green component, from 0 to 255
+   * @param blue
+   *          the blue component, from 0 to 255
+   * @param alpha
+   *          the alpha component, from 0 to 255
+   * @return the packed colour.
+   */
+  public static int pack(int red, int green, int blue, int alpha) {
+    return ((alpha & 0xff) << 24) | ((red & 0xff) << 16)
+        | ((green & 0xff) << 8) | (blue & 0xff);
+  }
+
+  /**
+   * Return the alpha component of a packed colour.
+   *
+   * @param argb
+   *          the packed colour
+   * @return the alpha component, from 0 to 255.
+   */
+  public static int alpha(int argb) {
+    return argb >>> 24;
+  }
+
+  /**
+   * Return the red component of a packed colour.
+   *
+   * @param argb
+   *          the packed colour
+   * @return the red component, from 0 to 255.
+   */
+  public static int red(int argb) {
+    return (argb >> 16) & 0xff;
+  }
+
+  /**
+   * Return the green component of a packed colour.
+   *
+   * @param argb
+   *          the packed colour
+   * @return the green component, from 0 to 255.
+   */
+  public static int green(int argb) {
+    return (argb >> 8) & 0xff;
+  }
+
+  /**
+   * Return the blue component of a packed colour.
+   *
+   * @param argb
+   *          the packed colour
+   * @return the blue component, from 0 to 255.
+   */
+  public static int blue(int argb) {
+    return argb & 0xff;
+  }
+
+  /**
+   * Add two colours component by component, clamping each sum at 255.
+   *
+   * @param p
+   *          the first packed colour
+   * @param q
+   *          the second packed colour
+   * @return the packed sum.
+   */
+  public static int addSaturated(int p, int q) {
+    int rb = (p & LANES) + (q & LANES);
+    int ag = ((p >>> 8) & LANES) + ((q >>> 8) & LANES);
+    return (saturate(ag) << 8) | saturate(rb);
+  }
+
+  /**
+   * Subtract one colour from another component by component, clamping each
+   * difference at 0.
+   *
+   * @param p
+   *          the packed colour to subtract from
+   * @param q
+   *          the packed colour to subtract
+   * @return the packed difference.
+   */
+  public static int subtractSaturated(int p, int q) {
+    // borrow from the bit above each component, which is left set unless
+    // the difference is negative
+    int rb = ((p & LANES) | CARRIES) - (q & LANES);
+    int ag = (((p >>> 8) & LANES) | CARRIES) - ((q >>> 8) & LANES);
+    return (keepPositive(ag) << 8) | keepPositive(rb);
+  }
+
+  /**
+   * Divide by 255, rounding down, by multiplying by a reciprocal.
+   *
+   * @param value
+   *          the value to divide, from 0 to <tt>255 * 257</tt>
+   * @return <tt>value / 255</tt>.
+   */
+  public static int div255(int value) {
+    return (value * 0x8081) >>> 23;
+  }
+
+  /**
+   * Multiply every component of a colour, alpha included, by
+   * <tt>factor / 255</tt>, rounding to nearest.
+   *
+   * @param argb
+   *          the packed colour
+   * @param factor
+   *          the factor, from 0 to 255
+   * @return the packed product.
+   */
+  public static int multiply(int argb, int factor) {
+    return (scaleLanes((argb >>> 8) & LANES, factor) << 8)
+        | scaleLanes(argb & LANES, factor);
+  }
+
+  /**
+   * Multiply the colour components of a colour by its alpha, rounding to
+   * nearest, so that colours can be filtered and blended without the
+   * colour of transparent pixels showing through.
+   *
+   * @param argb
+   *          the packed colour
+   * @return the packed premultiplied colour, with the same alpha.
+   */
+  public static int premultiply(int argb) {
+    int alpha = argb >>> 24;
+    if (alpha == 255) {
+      return argb;
+    }
+    return (alpha << 24) | scaleLanes(argb & LANES, alpha)
+        | (scaleLanes((argb >> 8) & 0xff, alpha) << 8);
+  }
+
+  /**
+   * Divide the colour components of a premultiplied colour by its alpha,
+   * undoing <tt>premultiply</tt>. Components larger than the alpha give
+   * 255, and a transparent colour gives transparent black.
+   *
+   * @param argb
+   *          the packed premultiplied colour
+   * @return the packed colour, with the same alpha.
+   */
+  public static int unpremultiply(int argb) {
+    int alpha = argb >>> 24;
+    if (alpha == 255) {
+      return argb;
+    }
+    int reciprocal = UNPREMULTIPLY[alpha];
+    int r = Math.min(255, (((argb >> 16) & 0xff) * reciprocal + 0x8000) >> 16);
+    int g = Math.min(255, (((argb >> 8) & 0xff) * reciprocal + 0x8000) >> 16);
+    int b = Math.min(255, ((argb & 0xff) * reciprocal + 0x8000) >> 16);
+    return (alpha << 24) | (r << 16) | (g << 8) | b;
+  }
+
+  /**
+   * Return the Rec. 601 luminance of a colour, using integer weights.
+   *
+   * @param argb
+   *          the packed colour
+   * @return the luminance, from 0 to 255.
+   */
+  public static int luminance601(int argb) {
+    return (77 * red(argb) + 150 * green(argb) + 29 * blue(argb) + 128) >> 8;
+  }
+
+  /**
+   * Return the Rec. 709 luminance of a colour, using integer weights.
+   *
+   * @param argb
+   *          the packed colour
+   * @return the luminance, from 0 to 255.
+   */
+  public static int luminance709(int argb) {
+    return (54 * red(argb) + 183 * green(argb) + 19 * blue(argb) + 128) >> 8;
+  }
+
+  /**
+   * Interpolate linearly between two colours, component by component.
+   *
+   * @param p
+   *          the packed colour at 0
+   * @param q
+   *          the packed colour at 256
+   * @param t
+   *          the position between the colours, from 0 to 256
+   * @return the packed colour <tt>(p * (256 - t) + q * t) / 256</tt>.
+   */
+  public static int lerp(int p, int q, int t) {
+    int rb = ((p & LANES) * (256 - t) + (q & LANES) * t) >>> 8;
+    int ag = ((p >>> 8) & LANES) * (256 - t) + ((q >>> 8) & LANES) * t;
+    return (ag & ~LANES) | (rb & LANES);
+  }
+
+  /**
+   * Multiply each of the two components in bits 0-7 and 16-23 by
+   * <tt>factor / 255</tt>, rounding to nearest.
+   */
+  static int scaleLanes(int lanes, int factor) {
+    int t = lanes * factor + 0x800080;
+    return ((t + ((t >>> 8) & LANES)) >>> 8) & LANES;
+  }
+
+  /**
+   * Clamp each of a pair of 9-bit sums at 255.
+   */
+  private static int saturate(int lanes) {
+    return (lanes | ((lanes & CARRIES) >>> 8) * 0xff) & LANES;
+  }
+
+  /**
+   * Clear each of a pair of differences whose borrow bit was taken.
+   */
+  private static int keepPositive(int lanes) {
+    return lanes & ((lanes & CARRIES) >>> 8) * 0xff;
+  }
+}
@@ -0,0 +1,118 @@
+package picture;
+
+import java.util.stream.IntStream;
+
+/**
+ * Runs work over the rows of an image on several cores. The rows are split
+ * into contiguous bands, one or more per core, and each band is handed to
+ * the work in a single call, so per-band state (such as a partial result)
+ * can be kept in locals.
+ * Every operation produces the same result whatever the parallelism, which
+ * the <tt>picture.parallelism</tt> system property sets (1 runs everything
+ * on the calling thread).
+ */
+final class Parallel {
+
+  /**
+   * Images with fewer pixels than this are processed by a single band.
+   */
+  private static final int MIN_BAND_PIXELS = 1 << 15;
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private Parallel() {
+  }
+
+  /**
+   * Return the number of cores operations are spread over: the
+   * <tt>picture.parallelism</tt> system property, read afresh for every
+   * operation, or else the number of available processors.
+   *
+   * @return the current parallelism, at least 1.
+   */
+  static int getParallelism() {
+    return Math.max(1, Integer.getInteger("picture.parallelism",
+        Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Work performed on one band of rows.
+   */
+  interface Band {
+
+    /**
+     * Process the rows from <tt>startRow</tt> (inclusive) to <tt>endRow</tt>
+     * (exclusive).
+     *
+     * @param band
+     *          the index of the band, from 0 to <tt>bands(...) - 1</tt>
+     * @param startRow
+     *          the first row of the band
+     * @param endRow
+     *          one past the last row of the band
+     */
+    void run(int band, int startRow, int endRow);
+  }
+
+  /**
+   * Return the number of bands an image of the given size is split into.
+   *
+   * @param width
+   *          width of the image
+   * @param height
+   *          height of the image
+   * @return the number of bands, at least 1 and at most <tt>height</tt>
+   */
+  static int bands(int width, int height) {
+    long pixels = (long) width * height;
+    long bySize = Math.max(1, pixels / MIN_BAND_PIXELS);
+    return (int) Math.max(1, Math.min(Math.min(getParallelism(), bySize),
+        height));
+  }
+
+  /**
+   * Split the rows of an image into bands and run the work on each of them,
+   * returning once every band has been processed.
+   *
+   * @param width
+   *          width of the image
+   * @param height
+   *          height of the image
+   * @param work
+   *          the work to perform on each band
+   */
+  static void forRows(int width, int height, Band work) {
+    forBands(bands(width, height), height, work);
+  }
+
+  /**
+   * Split rows into a given number of bands and run the work on each of
+   * them, returning once every band has been processed.
+   *
+   * @param bands
+   *          the number of bands, at most <tt>height</tt>
+   * @param height
+   *          the number of rows
+   * @param work
+   *          the work to perform on each band
+   */
+  static void forBands(int bands, int height, Band work) {
+    if (bands == 1) {
+      work.run(0, 0, height);
+      return;
+    }
+    IntStream.range(0, bands).parallel().forEach(band -> {
+      Metrics.working();
+      work.run(band, startRow(band, bands, height),
+          startRow(band + 1, bands, height));
+    });
+  }
+
+  /**
+   * Return the first row of a band.
+   */
+  private static int startRow(int band, int bands, int height) {
+    return (int) ((long) band * height / bands);
+  }
+}
@@ -0,0 +1,164 @@
+package picture;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The differences between two pictures of the same size, for checking the
+ * results of lossy operations against a reference within a tolerance.
+ * Runs of identical pixels are skipped with <tt>Arrays.mismatch</tt>, so
+ * comparing nearly identical pictures costs little more than comparing
+ * their rasters, and bands of rows are compared on several cores.
+ */
+public class PictureDiff {
+
+  /** The number of pixels which differ. */
+  private final long differentPixels;
+
+  /**
+   * The largest difference in any colour (or alpha) component of any pixel.
+   */
+  private final int maxDelta;
+
+  /** The sum of the squared differences of every colour component. */
+  private final long squaredError;
+
+  /** The number of colour components compared. */
+  private final long components;
+
+  /**
+   * Construct a diff from its totals.
+   */
+  private PictureDiff(long differentPixels, int maxDelta, long squaredError,
+      long components) {
+    this.differentPixels = differentPixels;
+    this.maxDelta = maxDelta;
+    this.squaredError = squaredError;
+    this.components = components;
+  }
+
+  /**
+   * Compare two pictures.
+   *
+   * @param expected
+   *          the reference picture
+   * @param actual
+   *          the picture to check
+   * @return the differences between them.
+   * @throws IllegalArgumentException
+   *           if the pictures are not the same size
+   */
+  public static PictureDiff compare(Picture expected, Picture actual) {
+    int width = expected.getWidth();
+    int height = expected.getHeight();
+    if (width != actual.getWidth() || height != actual.getHeight()) {
+      throw new IllegalArgumentException("pictures differ in size: "
+          + width + "x" + height + " and " + actual.getWidth() + "x"
+          + actual.getHeight());
+    }
+    int[] a = expected.raster();
+    int[] b = actual.raster();
+    // compare pictures without alpha as if they were opaque
+    int opaqueA = expected.hasAlpha() ? 0 : 0xff000000;
+    int opaqueB = actual.hasAlpha() ? 0 : 0xff000000;
+    boolean alpha = expected.hasAlpha() || actual.hasAlpha();
+    int bands = Parallel.bands(width, height);
+    long[][] partials = new long[bands][];
+
+    Parallel.forBands(bands, height, (band, startRow, endRow) -> {
+      long different = 0;
+      long max = 0;
+      long squared = 0;
+      int i = startRow * width;
+      int end = endRow * width;
+      while (i < end) {
+        int offset = Arrays.mismatch(a, i, end, b, i, end);
+        if (offset < 0) {
+          break;
+        }
+        i += offset;
+        int p = a[i] | opaqueA;
+        int q = b[i] | opaqueB;
+        if (p != q) {
+          different++;
+          for (int shift = 0; shift < 32; shift += 8) {
+            int delta = ((p >>> shift) & 0xff) - ((q >>> shift) & 0xff);
+            max = Math.max(max, Math.abs(delta));
+            squared += delta * delta;
+          }
+        }
+        i++;
+      }
+      partials[band] = new long[] {different, max, squared};
+    });
+
+    long different = 0;
+    int max = 0;
+    long squared = 0;
+    for (long[] partial : partials) {
+      different += partial[0];
+      max = (int) Math.max(max, partial[1]);
+      squared += partial[2];
+    }
+    return new PictureDiff(different, max, squared,
+        (alpha ? 4L : 3L) * width * height);
+  }
+
+  /**
+   * Return the number of pixels which differ in any colour component.
+   *
+   * @return the number of different pixels.
+   */
+  public long getDifferentPixels() {
+    return differentPixels;
+  }
+
+  /**
+   * Return the largest difference in any colour component of any pixel.
+   *
+   * @return the maximum channel difference, from 0 to 255.
+   */
+  public int getMaxDelta() {
+    return maxDelta;
+  }
+
+  /**
+   * Return the mean of the squared differences of every colour component.
+   *
+   * @return the mean squared error.
+   */
+  public double getMeanSquaredError() {
+    return components == 0 ? 0 : (double) squaredError / components;
+  }
+
+  /**
+   * Return the peak signal-to-noise ratio of the checked picture.
+   *
+   * @return the PSNR in decibels, or infinity if the pictures are identical.
+   */
+  public double getPsnr() {
+    double mse = getMeanSquaredError();
+    if (mse == 0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return 10 * Math.log10(255.0 * 255.0 / mse);
+  }
+
+  /**
+   * Test whether every colour component is within a tolerance.
+   *
+   * @param tolerance
+   *          the largest allowed difference in any colour component
+   * @return <tt>true</tt> if no component differs by more than the tolerance.
+   */
+  public boolean within(int tolerance) {
+    return maxDelta <= tolerance;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT,
+        "%d pixels differ, max delta %d, PSNR %.2f dB", differentPixels,
+        maxDelta, getPsnr());
+  }
+}
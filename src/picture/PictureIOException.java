@@ -0,0 +1,119 @@
+package picture;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a picture cannot be loaded or saved. The subclasses tell the
+ * common causes apart, so that callers can, for example, answer a missing
+ * picture differently from a corrupt one.
+ *
+ * @see picture.AsyncPictureIO
+ */
+public class PictureIOException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /** The file or URL which could not be read or written. */
+  private final String location;
+
+  /**
+   * Construct an exception for a location.
+   *
+   * @param location
+   *          the file or URL which could not be read or written
+   * @param message
+   *          what went wrong
+   * @param cause
+   *          the underlying failure, or null if there is none
+   */
+  public PictureIOException(String location, String message,
+      Throwable cause) {
+    super(message + ": " + location, cause);
+    this.location = location;
+  }
+
+  /**
+   * Return the location which could not be read or written.
+   *
+   * @return the file or URL.
+   */
+  public String getLocation() {
+    return location;
+  }
+
+  /**
+   * Thrown when there is no picture at a location: the file does not exist
+   * or the server answered 404.
+   */
+  public static class NotFound extends PictureIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct an exception for a missing picture.
+     *
+     * @param location
+     *          the file or URL
+     * @param cause
+     *          the underlying failure, or null if there is none
+     */
+    public NotFound(String location, Throwable cause) {
+      super(location, "no picture found", cause);
+    }
+  }
+
+  /**
+   * Thrown when the data at a location is not a picture in a supported
+   * format, or is corrupt.
+   */
+  public static class Unreadable extends PictureIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Construct an exception for data which cannot be decoded.
+     *
+     * @param location
+     *          the file or URL
+     * @param cause
+     *          the underlying failure, or null if there is none
+     */
+    public Unreadable(String location, Throwable cause) {
+      super(location, "not a readable picture", cause);
+    }
+  }
+
+  /**
+   * Thrown when a server answers a request for a picture with an error
+   * status other than 404.
+   */
+  public static class HttpStatus extends PictureIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The status the server answered with. */
+    private final int status;
+
+    /**
+     * Construct an exception for an error status.
+     *
+     * @param location
+     *          the URL
+     * @param status
+     *          the HTTP status
+     */
+    public HttpStatus(String location, int status) {
+      super(location, "HTTP status " + status, null);
+      this.status = status;
+    }
+
+    /**
+     * Return the status the server answered with.
+     *
+     * @return the HTTP status code.
+     */
+    public int getStatus() {
+      return status;
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package picture;
+
+/**
+ * An image stored as three separate planes, one per colour component.
+ * Each plane holds one 16-bit value per pixel, row by row, so intermediate
+ * results of multi-pass operations (such as sums of several pixels) can be
+ * kept without clamping. Values are clamped to the 0 to 255 range only when
+ * converting back to a <tt>Picture</tt>. The alpha component, if any, is not
+ * kept.
+ *
+ * @see picture.PlanarProcess
+ */
+public class PlanarPicture {
+
+  /** The index of the red plane. */
+  public static final int RED = 0;
+
+  /** The index of the green plane. */
+  public static final int GREEN = 1;
+
+  /** The index of the blue plane. */
+  public static final int BLUE = 2;
+
+  /** The dimensions of the image. */
+  private final int width, height;
+
+  /** The red, green and blue planes, in that order. */
+  private final short[][] planes;
+
+  /**
+   * Construct a new, black PlanarPicture of the specified size.
+   *
+   * @param width
+   *          width of the new picture
+   * @param height
+   *          height of the new picture
+   */
+  public PlanarPicture(int width, int height) {
+    this.width = width;
+    this.height = height;
+    this.planes = new short[3][width * height];
+  }
+
+  /**
+   * Convert a picture to its planar representation in a single pass.
+   *
+   * @param picture
+   *          the picture to convert
+   * @return a new PlanarPicture holding the same pixel-values
+   */
+  public static PlanarPicture fromPicture(Picture picture) {
+    PlanarPicture planar = new PlanarPicture(picture.getWidth(),
+        picture.getHeight());
+    int[] pixels = picture.raster();
+    short[] red = planar.planes[RED];
+    short[] green = planar.planes[GREEN];
+    short[] blue = planar.planes[BLUE];
+    for (int i = 0; i < red.length; i++) {
+      int rgb = pixels[i];
+      red[i] = (short) ((rgb >> 16) & 0xff);
+      green[i] = (short) ((rgb >> 8) & 0xff);
+      blue[i] = (short) (rgb & 0xff);
+    }
+    return planar;
+  }
+
+  /**
+   * Convert this image back to a picture in a single pass, clamping each
+   * component to the range 0 to 255.
+   *
+   * @return a new Picture holding the same pixel-values
+   */
+  public Picture toPicture() {
+    Picture picture = Utils.createPicture(width, height);
+    int[] pixels = picture.getPixels();
+    short[] red = planes[RED];
+    short[] green = planes[GREEN];
+    short[] blue = planes[BLUE];
+    for (int i = 0; i < red.length; i++) {
+      pixels[i] = (clamp(red[i]) << 16) | (clamp(green[i]) << 8)
+          | clamp(blue[i]);
+    }
+    return picture;
+  }
+
+  /**
+   * Clamp a component value to the range 0 to 255.
+   */
+  private static int clamp(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+
+  /**
+   * Return the width of the image.
+   *
+   * @return the width of this image.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Return the height of the image.
+   *
+   * @return the height of this image.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Return one of the planes of this image. Writing to the returned array
+   * updates the image.
+   *
+   * @param channel
+   *          one of {@link #RED}, {@link #GREEN} or {@link #BLUE}
+   * @return the values of the requested component, stored row by row.
+   */
+  public short[] getPlane(int channel) {
+    return planes[channel];
+  }
+}
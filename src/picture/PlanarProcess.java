@@ -0,0 +1,306 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * Provides the point, neighbourhood and geometric operations of
+ * <tt>Process</tt> on a <tt>PlanarPicture</tt>. Each operation works on
+ * whole planes at a time, so a chain of operations unpacks and repacks the
+ * pixels only once, when converting to and from a <tt>Picture</tt>. The
+ * results are identical to the corresponding <tt>Process</tt> operations on
+ * a picture without an alpha component.
+ * <p>
+ * The operations covered are the point operations (<tt>invert</tt>,
+ * <tt>grayscale</tt>, <tt>brightness</tt>, <tt>contrast</tt>,
+ * <tt>gamma</tt>, <tt>threshold</tt> and any <tt>PointChain</tt>), the
+ * quarter-turn rotations and flips, <tt>blur</tt>, <tt>blend</tt> and
+ * <tt>mosaic</tt>. Operations which need a histogram, resampling or
+ * per-pixel neighbourhood ranks (levels, equalize, resize, transform,
+ * median, erode and dilate) are only provided by <tt>Process</tt>.
+ */
+public class PlanarProcess {
+
+  /**
+   * The picture to be processed.
+   */
+  private PlanarPicture picture;
+
+  /**
+   * The dimensions of the picture.
+   */
+  private int width, height;
+
+  /**
+   * Default Construct. Construct a new PlanarProcess object with the
+   * specified picture.
+   *
+   * @param picture
+   *          the picture to be processed
+   */
+  public PlanarProcess(PlanarPicture picture) {
+    this.picture = picture;
+    this.width = picture.getWidth();
+    this.height = picture.getHeight();
+  }
+
+  /**
+   * Get the processed picture.
+   *
+   * @return the processed picture
+   */
+  public PlanarPicture getPicture() {
+    return picture;
+  }
+
+  /**
+   * Inverts the picture.
+   */
+  public void invert() {
+    for (int c = 0; c < 3; c++) {
+      short[] plane = picture.getPlane(c);
+      for (int i = 0; i < plane.length; i++) {
+        plane[i] = (short) (255 - plane[i]);
+      }
+    }
+  }
+
+  /**
+   * Applies grayscale to the picture.
+   */
+  public void grayscale() {
+    short[] red = picture.getPlane(PlanarPicture.RED);
+    short[] green = picture.getPlane(PlanarPicture.GREEN);
+    short[] blue = picture.getPlane(PlanarPicture.BLUE);
+    for (int i = 0; i < red.length; i++) {
+      short avg = (short) ((red[i] + green[i] + blue[i]) / 3);
+      red[i] = avg;
+      green[i] = avg;
+      blue[i] = avg;
+    }
+  }
+
+  /**
+   * Adds a constant to every colour component, clamping the result.
+   *
+   * @param delta
+   *          the amount to add, which may be negative
+   */
+  public void brightness(int delta) {
+    apply(new PointChain().brightness(delta));
+  }
+
+  /**
+   * Scales the distance of every colour component from mid-grey, clamping
+   * the result.
+   *
+   * @param factor
+   *          the scale factor; above 1 increases the contrast
+   */
+  public void contrast(double factor) {
+    apply(new PointChain().contrast(factor));
+  }
+
+  /**
+   * Applies gamma correction to every colour component.
+   *
+   * @param gamma
+   *          the exponent; below 1 brightens the picture
+   */
+  public void gamma(double gamma) {
+    apply(new PointChain().gamma(gamma));
+  }
+
+  /**
+   * Converts the picture to black and white, making white every pixel whose
+   * luminance is above a level.
+   *
+   * @param level
+   *          the highest luminance made black
+   */
+  public void threshold(int level) {
+    apply(new PointChain().luminance().threshold(level));
+  }
+
+  /**
+   * Applies a chain of point operations to every pixel in a single pass.
+   *
+   * @param chain
+   *          the operations to apply
+   */
+  public void apply(PointChain chain) {
+    chain.apply(picture.getPlane(PlanarPicture.RED),
+        picture.getPlane(PlanarPicture.GREEN),
+        picture.getPlane(PlanarPicture.BLUE));
+  }
+
+  /**
+   * Rotates the picture by 90 degrees clockwise.
+   */
+  public void rotate90() {
+    remap(height, width, (height - 1) * width, -width, 1);
+  }
+
+  /**
+   * Rotates the picture by 180 degrees.
+   */
+  public void rotate180() {
+    remap(width, height, height * width - 1, -1, -width);
+  }
+
+  /**
+   * Rotates the picture by 270 degrees clockwise.
+   */
+  public void rotate270() {
+    remap(height, width, width - 1, width, -1);
+  }
+
+  /**
+   * Flips the picture about its vertical axis.
+   */
+  public void flipHorizontal() {
+    remap(width, height, width - 1, -1, width);
+  }
+
+  /**
+   * Flips the picture about its horizontal axis.
+   */
+  public void flipVertical() {
+    remap(width, height, (height - 1) * width, 1, -width);
+  }
+
+  /**
+   * Replaces the picture by one whose pixels are taken from it in a fixed
+   * pattern: the pixel at (x,y) of the result is the source pixel at index
+   * <tt>first + x * stepX + y * stepY</tt>.
+   */
+  private void remap(int newWidth, int newHeight, int first, int stepX,
+      int stepY) {
+    PlanarPicture remapped = new PlanarPicture(newWidth, newHeight);
+    for (int c = 0; c < 3; c++) {
+      short[] src = picture.getPlane(c);
+      short[] dst = remapped.getPlane(c);
+      int i = 0;
+      for (int y = 0; y < newHeight; y++) {
+        int s = first + y * stepY;
+        for (int x = 0; x < newWidth; x++, s += stepX) {
+          dst[i++] = src[s];
+        }
+      }
+    }
+    picture = remapped;
+    width = newWidth;
+    height = newHeight;
+  }
+
+  /**
+   * Blurs the picture by setting each pixel-value to the average value of
+   * surrounding pixels. Pixels on the edge of the picture are left unchanged.
+   * Each plane is blurred in two passes: a horizontal sum of three pixels,
+   * then a vertical sum of three of those sums.
+   */
+  public void blur() {
+    if (width < 3 || height < 3) {
+      return;
+    }
+    // three 16-bit values may not fit in a short
+    int[] rowSums = new int[width * height];
+    for (int c = 0; c < 3; c++) {
+      short[] plane = picture.getPlane(c);
+      for (int j = 0; j < height; j++) {
+        int row = j * width;
+        for (int i = 1; i < width - 1; i++) {
+          rowSums[row + i] = plane[row + i - 1] + plane[row + i]
+              + plane[row + i + 1];
+        }
+      }
+      short[] blurred = plane.clone();
+      for (int j = 1; j < height - 1; j++) {
+        int row = j * width;
+        for (int i = 1; i < width - 1; i++) {
+          blurred[row + i] = (short) ((rowSums[row - width + i]
+              + rowSums[row + i] + rowSums[row + width + i]) / 9);
+        }
+      }
+      System.arraycopy(blurred, 0, plane, 0, plane.length);
+    }
+  }
+
+  /**
+   * Takes a list of pictures and combines them by averaging each colour
+   * component of each pixel across the list of pictures at any point.
+   * The resulting picture will have dimensions corresponding to the
+   * smallest individual width and individual height within the given
+   * set of pictures.
+   *
+   * @param pictures
+   *          the array containing the pictures to be blended together
+   */
+  public void blend(PlanarPicture[] pictures) {
+    int minWidth = pictures[0].getWidth();
+    int minHeight = pictures[0].getHeight();
+    for (PlanarPicture p : pictures) {
+      minWidth = Math.min(minWidth, p.getWidth());
+      minHeight = Math.min(minHeight, p.getHeight());
+    }
+    PlanarPicture blended = new PlanarPicture(minWidth, minHeight);
+    int[] sums = new int[minWidth];
+    for (int c = 0; c < 3; c++) {
+      short[] out = blended.getPlane(c);
+      for (int j = 0; j < minHeight; j++) {
+        Arrays.fill(sums, 0);
+        for (PlanarPicture p : pictures) {
+          short[] plane = p.getPlane(c);
+          int row = j * p.getWidth();
+          for (int i = 0; i < minWidth; i++) {
+            sums[i] += plane[row + i];
+          }
+        }
+        int row = j * minWidth;
+        for (int i = 0; i < minWidth; i++) {
+          out[row + i] = (short) (sums[i] / pictures.length);
+        }
+      }
+    }
+    picture = blended;
+    width = minWidth;
+    height = minHeight;
+  }
+
+  /**
+   * Combines pictures to create a mosaic with tiles of a certain size, like
+   * <tt>Process.mosaic</tt>. The result is as large as the smallest
+   * picture, trimmed to a multiple of the tile size, and each tile comes
+   * from the picture after that of the tiles to its west and north.
+   *
+   * @param tileSize
+   *          the size of a single square mosaic tile
+   * @param pictures
+   *          the array of pictures to be combined
+   */
+  public void mosaic(int tileSize, PlanarPicture[] pictures) {
+    int minWidth = pictures[0].getWidth();
+    int minHeight = pictures[0].getHeight();
+    for (PlanarPicture p : pictures) {
+      minWidth = Math.min(minWidth, p.getWidth());
+      minHeight = Math.min(minHeight, p.getHeight());
+    }
+    minWidth -= minWidth % tileSize;
+    minHeight -= minHeight % tileSize;
+    PlanarPicture tiled = new PlanarPicture(minWidth, minHeight);
+    for (int c = 0; c < 3; c++) {
+      short[] out = tiled.getPlane(c);
+      for (int j = 0; j < minHeight; j++) {
+        int n = j / tileSize % pictures.length;
+        for (int i = 0; i < minWidth; i += tileSize) {
+          PlanarPicture p = pictures[n];
+          System.arraycopy(p.getPlane(c), j * p.getWidth() + i, out,
+              j * minWidth + i, tileSize);
+          n = (n + 1) % pictures.length;
+        }
+      }
+    }
+    picture = tiled;
+    width = minWidth;
+    height = minHeight;
+  }
+}
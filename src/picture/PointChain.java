@@ -0,0 +1,319 @@
+package picture;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A chain of point operations, each of which computes the colour of a pixel
+ * from the colour of the same pixel only. The chain is compiled into lookup
+ * tables as operations are added, so applying a chain of any length costs
+ * one table lookup per colour component.
+ * <p>
+ * Operations which act on each colour component separately (such as invert,
+ * brightness or gamma) are folded into one 256 entry table per component.
+ * Operations which mix the components (grayscale and luminance) compute a
+ * weighted sum of them; the chain then looks up each component's weighted
+ * contribution, adds the three, and looks the sum up in a table of packed
+ * output colours. This keeps the cross-channel case exact, at the cost of
+ * four tables of one entry per possible weighted sum (about 65 thousand
+ * ints each for luminance), so about a megabyte in all.
+ * The alpha component of each pixel is left unchanged.
+ */
+public class PointChain {
+
+  /** The number of distinct intensities. */
+  private static final int LEVELS = 256;
+
+  /**
+   * The per-component tables applied before the first mixing operation,
+   * indexed by component then input intensity.
+   */
+  private final int[][] tables = new int[3][LEVELS];
+
+  /**
+   * The weights of the first mixing operation, or null if there is none.
+   */
+  private int[] weights;
+
+  /**
+   * The per-component tables applied after the first mixing operation,
+   * indexed by component then weighted sum, or null if there is none.
+   */
+  private int[][] mixed;
+
+  /**
+   * Construct a new chain which leaves every pixel unchanged.
+   */
+  public PointChain() {
+    for (int c = 0; c < 3; c++) {
+      for (int v = 0; v < LEVELS; v++) {
+        tables[c][v] = v;
+      }
+    }
+  }
+
+  /**
+   * Append an operation which replaces every colour component by the result
+   * of a function, clamped to the range 0 to 255.
+   *
+   * @param function
+   *          the function of the intensity of a component
+   * @return this chain
+   */
+  public PointChain map(IntUnaryOperator function) {
+    for (int c = 0; c < 3; c++) {
+      map(c, function);
+    }
+    return this;
+  }
+
+  /**
+   * Append an operation which replaces one colour component by the result
+   * of a function, clamped to the range 0 to 255.
+   *
+   * @param component
+   *          0 for red, 1 for green or 2 for blue
+   * @param function
+   *          the function of the intensity of the component
+   * @return this chain
+   */
+  public PointChain map(int component, IntUnaryOperator function) {
+    int[] table = mixed == null ? tables[component] : mixed[component];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = clamp(function.applyAsInt(table[i]));
+    }
+    return this;
+  }
+
+  /**
+   * Append an operation which replaces each colour component by its entry in
+   * a lookup table.
+   *
+   * @param red
+   *          the 256 entry table for the red component
+   * @param green
+   *          the 256 entry table for the green component
+   * @param blue
+   *          the 256 entry table for the blue component
+   * @return this chain
+   */
+  public PointChain lookup(int[] red, int[] green, int[] blue) {
+    map(0, v -> red[v]);
+    map(1, v -> green[v]);
+    return map(2, v -> blue[v]);
+  }
+
+  /**
+   * Append an inversion of every colour component.
+   *
+   * @return this chain
+   */
+  public PointChain invert() {
+    return map(v -> 255 - v);
+  }
+
+  /**
+   * Append a change of brightness.
+   *
+   * @param delta
+   *          the amount added to every colour component
+   * @return this chain
+   */
+  public PointChain brightness(int delta) {
+    return map(v -> v + delta);
+  }
+
+  /**
+   * Append a change of contrast about the middle intensity.
+   *
+   * @param factor
+   *          how much the distance of each component from 128 is scaled by
+   * @return this chain
+   */
+  public PointChain contrast(double factor) {
+    return map(v -> (int) Math.round((v - 128) * factor + 128));
+  }
+
+  /**
+   * Append a gamma correction, raising every colour component (as a fraction
+   * of 255) to the given power. Values below 1 brighten the picture.
+   *
+   * @param gamma
+   *          the exponent
+   * @return this chain
+   */
+  public PointChain gamma(double gamma) {
+    return map(v -> (int) Math.round(255 * Math.pow(v / 255.0, gamma)));
+  }
+
+  /**
+   * Append a threshold, making every colour component above the level 255
+   * and every other component 0.
+   *
+   * @param level
+   *          the highest intensity mapped to 0
+   * @return this chain
+   */
+  public PointChain threshold(int level) {
+    return map(v -> v > level ? 255 : 0);
+  }
+
+  /**
+   * Append a conversion to grayscale, replacing every colour component by
+   * the average of the three.
+   *
+   * @return this chain
+   */
+  public PointChain grayscale() {
+    return mix(1, 1, 1, 3, 0);
+  }
+
+  /**
+   * Append a conversion to grayscale, replacing every colour component by
+   * the Rec. 601 luminance of the colour.
+   *
+   * @return this chain
+   */
+  public PointChain luminance() {
+    return mix(77, 150, 29, 256, 128);
+  }
+
+  /**
+   * Append an operation which replaces every colour component by
+   * <tt>(wr * red + wg * green + wb * blue + rounding) / divisor</tt>.
+   */
+  private PointChain mix(int wr, int wg, int wb, int divisor, int rounding) {
+    if (mixed == null) {
+      weights = new int[] {wr, wg, wb};
+      int sums = (wr + wg + wb) * 255 + 1;
+      mixed = new int[3][sums];
+      for (int s = 0; s < sums; s++) {
+        int gray = (s + rounding) / divisor;
+        mixed[0][s] = gray;
+        mixed[1][s] = gray;
+        mixed[2][s] = gray;
+      }
+      return this;
+    }
+    for (int s = 0; s < mixed[0].length; s++) {
+      int gray = (wr * mixed[0][s] + wg * mixed[1][s] + wb * mixed[2][s]
+          + rounding) / divisor;
+      mixed[0][s] = gray;
+      mixed[1][s] = gray;
+      mixed[2][s] = gray;
+    }
+    return this;
+  }
+
+  /**
+   * Apply the chain to every pixel of a picture, in place.
+   *
+   * @param picture
+   *          the picture to modify
+   */
+  public void apply(Picture picture) {
+    apply(picture, new Region(0, 0, picture.getWidth(), picture.getHeight()));
+  }
+
+  /**
+   * Apply the chain to the pixels of a picture within a region, in place.
+   *
+   * @param picture
+   *          the picture to modify
+   * @param region
+   *          the pixels to modify
+   */
+  public void apply(Picture picture, Region region) {
+    int width = picture.getWidth();
+    Region clipped = region.clip(width, picture.getHeight());
+    if (clipped == null) {
+      return;
+    }
+    int[] pixels = picture.getPixels();
+    int top = clipped.getY();
+    if (mixed == null) {
+      int[] red = tables[0];
+      int[] green = tables[1];
+      int[] blue = tables[2];
+      Parallel.forRows(clipped.getWidth(), clipped.getHeight(),
+          (band, startRow, endRow) -> clipped.forSpans(top + startRow,
+              top + endRow, (y, startX, endX) -> {
+                for (int i = y * width + startX; i < y * width + endX; i++) {
+                  int rgb = pixels[i];
+                  pixels[i] = (rgb & 0xff000000)
+                      | (red[(rgb >> 16) & 0xff] << 16)
+                      | (green[(rgb >> 8) & 0xff] << 8) | blue[rgb & 0xff];
+                }
+              }));
+      return;
+    }
+
+    int[] red = new int[LEVELS];
+    int[] green = new int[LEVELS];
+    int[] blue = new int[LEVELS];
+    for (int v = 0; v < LEVELS; v++) {
+      red[v] = weights[0] * tables[0][v];
+      green[v] = weights[1] * tables[1][v];
+      blue[v] = weights[2] * tables[2][v];
+    }
+    int[] packed = new int[mixed[0].length];
+    for (int s = 0; s < packed.length; s++) {
+      packed[s] = (mixed[0][s] << 16) | (mixed[1][s] << 8) | mixed[2][s];
+    }
+    Parallel.forRows(clipped.getWidth(), clipped.getHeight(),
+        (band, startRow, endRow) -> clipped.forSpans(top + startRow,
+            top + endRow, (y, startX, endX) -> {
+              for (int i = y * width + startX; i < y * width + endX; i++) {
+                int rgb = pixels[i];
+                pixels[i] = (rgb & 0xff000000) | packed[red[(rgb >> 16) & 0xff]
+                    + green[(rgb >> 8) & 0xff] + blue[rgb & 0xff]];
+              }
+            }));
+  }
+
+  /**
+   * Apply the chain to the colour planes of a planar picture, in place.
+   * Values outside the range 0 to 255 are clamped before they are looked
+   * up.
+   *
+   * @param red
+   *          the red plane
+   * @param green
+   *          the green plane
+   * @param blue
+   *          the blue plane
+   */
+  void apply(short[] red, short[] green, short[] blue) {
+    if (mixed == null) {
+      short[][] planes = {red, green, blue};
+      for (int c = 0; c < 3; c++) {
+        short[] plane = planes[c];
+        int[] table = tables[c];
+        for (int i = 0; i < plane.length; i++) {
+          plane[i] = (short) table[clamp(plane[i])];
+        }
+      }
+      return;
+    }
+    int[] wr = new int[LEVELS];
+    int[] wg = new int[LEVELS];
+    int[] wb = new int[LEVELS];
+    for (int v = 0; v < LEVELS; v++) {
+      wr[v] = weights[0] * tables[0][v];
+      wg[v] = weights[1] * tables[1][v];
+      wb[v] = weights[2] * tables[2][v];
+    }
+    for (int i = 0; i < red.length; i++) {
+      int sum = wr[clamp(red[i])] + wg[clamp(green[i])] + wb[clamp(blue[i])];
+      red[i] = (short) mixed[0][sum];
+      green[i] = (short) mixed[1][sum];
+      blue[i] = (short) mixed[2][sum];
+    }
+  }
+
+  /**
+   * Clamp an intensity to the range 0 to 255.
+   */
+  private static int clamp(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+}
@@ -1,10 +1,30 @@
 package picture;
 
+import java.awt.geom.AffineTransform;
+
 import utils.Tuple;
 
 /**
  * Encapsulates and provides different types of transformations which can be
  * applied to an image.
+ * <p>
+ * Every transformation can be restricted to a region of interest with
+ * {@link #setRegion(Region)}. The pixels outside the region are then left
+ * unchanged and the picture keeps its size. Point operations work on the
+ * selected pixels in place; every other operation works on a copy of the
+ * region's bounding rectangle (plus the neighbouring pixels it reads) and
+ * writes the selected pixels back, so the cost depends on the size of the
+ * region rather than the size of the picture. Geometric operations
+ * transform the region's contents about the centre of its bounding
+ * rectangle.
+ * <p>
+ * Operations which replace the picture return the raster of the picture
+ * they replace to the <tt>RasterPool</tt>, for later operations to reuse,
+ * but only if this object created that picture and never handed it out.
+ * The picture given to the constructor is never released, and neither is
+ * one returned by {@link #getPicture()}, since the caller may still hold
+ * it: a picture obtained from <tt>getPicture()</tt> stays valid however
+ * many operations follow.
  */
 public class Process {
 
@@ -18,6 +38,29 @@ public class Process {
      */
     private int width, height;
 
+    /**
+     * The region of interest, in the coordinates of the picture, or null to
+     * process the whole picture.
+     */
+    private Region region;
+
+    /**
+     * Whether the picture was created by this object and never handed out,
+     * so that its raster can be reused once it is replaced.
+     */
+    private boolean owned;
+
+    /**
+     * The position of the picture within a larger picture it is part of.
+     */
+    private final int originX, originY;
+
+    /**
+     * Whether an operation read pixels arbitrarily far from those it
+     * changed (a histogram or a flood fill), so that processing part of a
+     * picture does not give the same result as processing the whole.
+     */
+    private boolean global;
 
     /**
      * Default Construct. Construct a new Process object with the specified
@@ -27,125 +70,310 @@ public class Process {
      *          the picture to be processed
      */
     public Process(Picture picture) {
+        this(picture, 0, 0);
+    }
+
+    /**
+     * Construct a new Process object for a picture which is part of a
+     * larger picture. Regions and positions given to the new object are in
+     * the coordinates of the larger picture.
+     *
+     * @param picture
+     *          the picture to be processed
+     * @param originX
+     *          the x-coordinate of the picture's top-left corner in the
+     *          larger picture
+     * @param originY
+     *          the y-coordinate of the picture's top-left corner in the
+     *          larger picture
+     */
+    Process(Picture picture, int originX, int originY) {
+        this.originX = originX;
+        this.originY = originY;
         this.picture = picture;
         this.height = picture.getHeight();
         this.width = picture.getWidth();
     }
 
     /**
-     * Get the processed picture.
+     * Get the processed picture. The picture is then the caller's, and is
+     * never returned to the <tt>RasterPool</tt> by later operations.
      *
      * @return the processed picture
      */
     public Picture getPicture() {
+        owned = false;
         return this.picture;
     }
 
     /**
-     * Inverts the picture.
+     * Tests whether an operation applied so far depends on the whole
+     * picture (or region) rather than on the neighbourhood of each pixel.
+     *
+     * @return <tt>true</tt> if a histogram was computed or an area filled.
      */
-    public void invert() {
-        for(int i = 0; i < width; i++) {
-            for(int j = 0; j < height; j++) {
-                Color pixel = picture.getPixel(i, j);
-                invertPixel(pixel);
-                picture.setPixel(i, j, pixel);
+    boolean isGlobal() {
+        return global;
+    }
 
-            }
+    /**
+     * Replaces the picture by the result of a transformation, returning the
+     * old one to the <tt>RasterPool</tt> if it was created by this object.
+     *
+     * @param newPicture
+     *          the transformed picture
+     */
+    private void replace(Picture newPicture) {
+        if (owned && newPicture != picture) {
+            RasterPool.release(picture);
         }
+        picture = newPicture;
+        owned = true;
+    }
+
+    /**
+     * Restricts the following transformations to a region of interest.
+     *
+     * @param region
+     *          the region to process, or null to process the whole picture
+     */
+    public void setRegion(Region region) {
+        this.region = region == null ? null
+                : region.translate(-originX, -originY);
     }
 
     /**
-     * Inverts a pixel.
+     * Get the region of interest.
      *
-     * @param pixel
-     *          the pixel to be inverted
+     * @return the region transformations are restricted to, or null if they
+     * apply to the whole picture
+     */
+    public Region getRegion() {
+        return region == null ? null : region.translate(originX, originY);
+    }
+
+    /**
+     * Inverts the picture.
      */
-    private void invertPixel(Color pixel) {
-        pixel.setRed(255 - pixel.getRed());
-        pixel.setBlue(255 - pixel.getBlue());
-        pixel.setGreen(255 - pixel.getGreen());
+    public void invert() {
+        apply(new PointChain().invert());
     }
 
     /**
      * Applies grayscale to the picture.
      */
     public void grayscale() {
+        apply(new PointChain().grayscale());
+    }
 
-        for(int i = 0; i < width; i++) {
-            for(int j = 0; j < height; j++) {
-                Color pixel = picture.getPixel(i, j);
-                int avg = (pixel.getRed() + pixel.getBlue() + pixel.getGreen()) / 3;
-                Color color = new Color(avg, avg, avg);
-                picture.setPixel(i, j, color);
+    /**
+     * Changes the brightness of the picture.
+     *
+     * @param delta
+     *          the amount added to every colour component
+     */
+    public void brightness(int delta) {
+        apply(new PointChain().brightness(delta));
+    }
 
-            }
+    /**
+     * Changes the contrast of the picture.
+     *
+     * @param factor
+     *          how much the distance of each colour component from the middle
+     *          intensity is scaled by
+     */
+    public void contrast(double factor) {
+        apply(new PointChain().contrast(factor));
+    }
+
+    /**
+     * Applies gamma correction to the picture.
+     *
+     * @param gamma
+     *          the exponent each colour component (as a fraction of 255) is
+     *          raised to
+     */
+    public void gamma(double gamma) {
+        apply(new PointChain().gamma(gamma));
+    }
+
+    /**
+     * Applies a chain of point operations to the picture, as a single
+     * table lookup per pixel.
+     *
+     * @param chain
+     *          the operations to apply
+     */
+    public void apply(PointChain chain) {
+        if (region == null) {
+            chain.apply(picture);
+        } else {
+            chain.apply(picture, region);
         }
+    }
+
+    /**
+     * Stretches the intensities of each colour component so that they cover
+     * the full range from 0 to 255.
+     */
+    public void autoLevels() {
+        Histogram histogram = histogram();
+        apply(new PointChain().lookup(histogram.levelsTable(Histogram.RED),
+                histogram.levelsTable(Histogram.GREEN),
+                histogram.levelsTable(Histogram.BLUE)));
+    }
+
+    /**
+     * Equalizes the histogram of each colour component, spreading its
+     * intensities as evenly as possible over the range from 0 to 255.
+     */
+    public void equalize() {
+        Histogram histogram = histogram();
+        apply(new PointChain().lookup(histogram.equalizeTable(Histogram.RED),
+                histogram.equalizeTable(Histogram.GREEN),
+                histogram.equalizeTable(Histogram.BLUE)));
+    }
+
+    /**
+     * Turns the picture into black and white, making the pixels whose
+     * luminance is above the threshold chosen by Otsu's method white and the
+     * rest black.
+     */
+    public void threshold() {
+        threshold(histogram().otsuThreshold(Histogram.LUMINANCE));
+    }
+
+    /**
+     * Computes the histogram of the pixels being processed.
+     */
+    private Histogram histogram() {
+        global = true;
+        return region == null ? Histogram.of(picture)
+                : Histogram.of(picture, region);
+    }
 
+    /**
+     * Turns the picture into black and white, making the pixels whose
+     * luminance is above the given level white and the rest black.
+     *
+     * @param level
+     *          the highest luminance turned black
+     */
+    public void threshold(int level) {
+        apply(new PointChain().luminance().threshold(level));
     }
 
     /**
      * Rotates the picture 90 degrees to the right.
      */
     public void rotate90() {
-        Picture newPicture = Utils.createPicture(height, width);
-        for(int i = 0; i < width; i++) {
-            for(int j = 0; j < height; j++) {
-                Color pixel = picture.getPixel(i, j);
-                newPicture.setPixel(height - j - 1, i, pixel);
-            }
-        }
-        picture = newPicture;
+        transform(AffineTransform.getQuadrantRotateInstance(1));
     }
 
     /**
      * Rotates the picture 180 degrees to the right.
      */
     public void rotate180() {
-        Picture newPicture = Utils.createPicture(width, height);
-        for(int i = 0; i < width; i++) {
-            for(int j = 0; j < height; j++) {
-                Color pixel = picture.getPixel(i, j);
-                newPicture.setPixel(width - 1 - i, height -1 - j, pixel);
-            }
-        }
-        picture = newPicture;
+        transform(AffineTransform.getQuadrantRotateInstance(2));
     }
 
     /**
      * Rotates the picture 270 degrees to the right.
      */
     public void rotate270() {
-        rotate180();
-        rotate90();
+        transform(AffineTransform.getQuadrantRotateInstance(3));
+    }
+
+    /**
+     * Rotates the picture to the right by any angle. The rotated picture is
+     * enlarged to hold all of the original, with black corners.
+     *
+     * @param degrees
+     *          the angle to rotate by
+     */
+    public void rotate(double degrees) {
+        transform(AffineTransform.getRotateInstance(Math.toRadians(degrees)));
     }
 
     /**
      * Flips the picture about the y-axis.
      */
     public void flipHorizontal() {
-        Picture newPicture = Utils.createPicture(width, height);
-        for(int i = 0; i < width; i++) {
-            for(int j = 0; j < height; j++) {
-                Color pixel = picture.getPixel(i, j);
-                newPicture.setPixel(width - 1 - i, j, pixel);
-            }
-        }
-        picture = newPicture;
+        transform(AffineTransform.getScaleInstance(-1, 1));
     }
 
     /**
      * Flips the picture about the x-axis.
      */
     public void flipVertical() {
-        Picture newPicture = Utils.createPicture(width, height);
-        for(int i = 0; i < width; i++) {
-            for(int j = 0; j < height; j++) {
-                Color pixel = picture.getPixel(i, j);
-                newPicture.setPixel(i, height - 1 - j, pixel);
-            }
+        transform(AffineTransform.getScaleInstance(1, -1));
+    }
+
+    /**
+     * Applies an affine transformation to the picture. The transformed
+     * picture is just large enough to hold all of the original, so any
+     * translation in the transformation has no effect; use
+     * {@link #transform(AffineTransform, int, int)} to keep it.
+     *
+     * @param transform
+     *          the transformation, mapping original coordinates (with y
+     *          increasing downwards) to transformed coordinates
+     */
+    public void transform(AffineTransform transform) {
+        if (inRegion(0, true, width, height,
+                (part, x, y) -> part.transform(transform))) {
+            return;
         }
-        picture = newPicture;
+        replace(Transformer.transform(picture, transform));
+        width = picture.getWidth();
+        height = picture.getHeight();
+    }
+
+    /**
+     * Applies an affine transformation to the picture, drawing the result
+     * on a canvas of the given size whose top left corner is the origin of
+     * the transformed coordinates, so translation is kept. With a region,
+     * the canvas is placed at the top left corner of the region.
+     *
+     * @param transform
+     *          the transformation, mapping original coordinates (with y
+     *          increasing downwards) to transformed coordinates
+     * @param newWidth
+     *          the width of the canvas
+     * @param newHeight
+     *          the height of the canvas
+     */
+    public void transform(AffineTransform transform, int newWidth,
+            int newHeight) {
+        if (inRegion(0, false, width, height, (part, x, y) -> part.transform(
+                transform, newWidth, newHeight))) {
+            return;
+        }
+        replace(Transformer.transform(picture, transform, newWidth,
+                newHeight));
+        width = newWidth;
+        height = newHeight;
+    }
+
+    /**
+     * Resizes the picture.
+     *
+     * @param newWidth
+     *          the width of the resized picture
+     * @param newHeight
+     *          the height of the resized picture
+     * @param filter
+     *          the reconstruction filter used to compute the new pixels
+     */
+    public void resize(int newWidth, int newHeight, Resampler.Filter filter) {
+        if (inRegion(0, true, width, height,
+                (part, x, y) -> part.resize(newWidth, newHeight, filter))) {
+            return;
+        }
+        replace(Resampler.resize(picture, newWidth, newHeight, filter));
+        width = newWidth;
+        height = newHeight;
     }
 
     /**
@@ -153,71 +381,217 @@ public class Process {
      * component of each pixel across the list of pictures at any point.
      * The resulting picture will have dimensions corresponding to the
      * smallest individual width and individual height within the given
-     * set of pictures.
+     * set of pictures. If it has an alpha component, the colours are
+     * weighted by their alpha, so transparent pixels add no colour.
      *
      * @param pictures
      *          the array containing the pictures to be blended together
      */
     public void blend(Picture[] pictures) {
-        int minWidth = width;
-        int minHeight = height;
-        getMins(minWidth, minHeight, pictures);
-        Picture newPicture = Utils.createPicture(minWidth, minHeight);
-
+        if (inRegion(0, false, minWidth(pictures), minHeight(pictures),
+                (part, x, y) -> part.blend(crop(pictures, x, y, part.width,
+                        part.height)))) {
+            return;
+        }
+        int minWidth = minWidth(pictures);
+        int minHeight = minHeight(pictures);
+        Picture newPicture = Utils.createPicture(minWidth, minHeight,
+                pictures[0].hasAlpha());
+        int[] dst = newPicture.getPixels();
+        boolean alpha = newPicture.hasAlpha();
+        int keep = alpha ? -1 : 0xffffff;
+        int[][] sources = new int[pictures.length][];
+        int[] opaque = new int[pictures.length];
+        for (int m = 0; m < pictures.length; m++) {
+            sources[m] = pictures[m].raster();
+            opaque[m] = pictures[m].hasAlpha() ? 0 : 0xff000000;
+        }
         int numberOfPictures = pictures.length;
-
-        for(int i = 0; i < minWidth; i++) {
-            for(int j = 0; j < minHeight; j++) {
-
-                Color pixel = pictures[0].getPixel(i, j);
-
-                for(int m = 1; m < numberOfPictures; m++) {
-                    addPixel(pixel, pictures[m].getPixel(i, j));
+        Parallel.forRows(minWidth, minHeight, (band, startRow, endRow) -> {
+            for (int j = startRow; j < endRow; j++) {
+                for (int i = 0; i < minWidth; i++) {
+                    int a = 0, r = 0, g = 0, b = 0;
+                    for (int m = 0; m < numberOfPictures; m++) {
+                        int pixel = sources[m][j * pictures[m].getWidth() + i]
+                                | opaque[m];
+                        if (alpha) {
+                            pixel = PackedColor.premultiply(pixel);
+                        }
+                        a += PackedColor.alpha(pixel);
+                        r += PackedColor.red(pixel);
+                        g += PackedColor.green(pixel);
+                        b += PackedColor.blue(pixel);
+                    }
+                    int mean = PackedColor.pack(r / numberOfPictures,
+                            g / numberOfPictures, b / numberOfPictures,
+                            a / numberOfPictures);
+                    dst[j * minWidth + i] = alpha
+                            ? PackedColor.unpremultiply(mean) : mean & keep;
                 }
-                pixelDiv(pixel, numberOfPictures);
-
-                newPicture.setPixel(i, j, pixel);
             }
+        });
+        replace(newPicture);
+    }
+
+    /**
+     * Draws another picture over this one, blending translucent pixels of
+     * the overlay with the pixels underneath. Parts of the overlay outside
+     * this picture are ignored.
+     *
+     * @param overlay
+     *          the picture to draw
+     * @param x
+     *          the x-coordinate of the overlay's top-left corner
+     * @param y
+     *          the y-coordinate of the overlay's top-left corner
+     */
+    public void overlay(Picture overlay, int x, int y) {
+        int localX = x - originX;
+        int localY = y - originY;
+        if (inRegion(0, false, width, height,
+                (part, partX, partY) -> part.overlay(overlay, localX - partX,
+                        localY - partY))) {
+            return;
         }
-        picture = newPicture;
+        Compositor.over(picture, overlay, localX, localY);
     }
 
     /**
-     * Computes the minimum individual width and individual height from an
-     * array of pictures.
+     * Fills the area of the seed pixel's colour around it with another
+     * colour, as a paint bucket does. With a region of interest, the fill
+     * stays within the region and does nothing if the seed is outside it.
      *
-     * @param minWidth
-     *          the variable to hold the computed minimum width
-     * @param minHeight
-     *          the variable to hold the computed minimum height
-     * @param pictures
-     *          the array of pictures
+     * @param x
+     *          the x-coordinate of the seed pixel
+     * @param y
+     *          the y-coordinate of the seed pixel
+     * @param color
+     *          the colour to fill with
      */
-    private void getMins(int minWidth, int minHeight, Picture[] pictures) {
-        for(Picture p : pictures) {
-            minWidth = Math.min(minWidth, p.getWidth());
-            minHeight = Math.min(minHeight, p.getHeight());
+    public void floodFill(int x, int y, Color color) {
+        global = true;
+        int localX = x - originX;
+        int localY = y - originY;
+        if (inRegion(0, false, width, height,
+                (part, partX, partY) -> {
+                    if (part.picture.contains(localX - partX,
+                            localY - partY)) {
+                        part.floodFill(localX - partX, localY - partY,
+                                color);
+                    }
+                })) {
+            return;
         }
+        Components.floodFill(picture, localX, localY, color);
     }
 
     /**
      * Blurs the picture by setting each pixel-value to the average value of
-     * surrounding pixels.
+     * surrounding pixels, weighting colours by their alpha if the picture
+     * has one.
      */
     public void blur() {
-        Picture newPicture = Utils.createPicture(width, height);
-        for(int i = 0; i < width ; i++) {
-            for(int j = 0; j < height; j++) {
-                if(!isOnEdge(i, j)) {
-                    Color blurredPixel = getBlurredPixel(i, j);
-                    newPicture.setPixel(i, j, blurredPixel);
+        if (inRegion(1, false, width, height, (part, x, y) -> part.blur())) {
+            return;
+        }
+        Picture newPicture = Utils.createPicture(width, height,
+                picture.hasAlpha());
+        int[] src = picture.raster();
+        int[] dst = newPicture.getPixels();
+        boolean alpha = picture.hasAlpha();
+        TileScheduler.forTiles(width, height, 1,
+                (x, y, tileWidth, tileHeight) -> blurTile(src, dst, alpha,
+                        x, y, tileWidth, tileHeight));
+        replace(newPicture);
+    }
+
+    /**
+     * Blurs one tile of the picture into the destination raster.
+     *
+     * @param src
+     *          the raster of the picture
+     * @param dst
+     *          the raster of the blurred picture
+     * @param alpha
+     *          whether to premultiply the pixels by their alpha
+     * @param x
+     *          the x-coordinate of the tile's top-left corner
+     * @param y
+     *          the y-coordinate of the tile's top-left corner
+     * @param tileWidth
+     *          the width of the tile
+     * @param tileHeight
+     *          the height of the tile
+     */
+    private void blurTile(int[] src, int[] dst, boolean alpha, int x, int y,
+            int tileWidth, int tileHeight) {
+        for (int j = y; j < y + tileHeight; j++) {
+            for (int i = x; i < x + tileWidth; i++) {
+                int index = j * width + i;
+                if (isOnEdge(i, j)) {
+                    dst[index] = src[index];
+                    continue;
                 }
-                else {
-                    newPicture.setPixel(i, j, picture.getPixel(i, j));
+                // sum two components at a time, in 16-bit halves
+                int rb = 0, ag = 0;
+                for (int n = index - width; n <= index + width; n += width) {
+                    for (int m = n - 1; m <= n + 1; m++) {
+                        int pixel = alpha ? PackedColor.premultiply(src[m])
+                                : src[m];
+                        rb += pixel & 0xff00ff;
+                        ag += (pixel >>> 8) & 0xff00ff;
+                    }
                 }
+                int mean = PackedColor.pack((rb >>> 16) / 9,
+                        (ag & 0xffff) / 9, (rb & 0xffff) / 9, (ag >>> 16) / 9);
+                dst[index] = alpha ? PackedColor.unpremultiply(mean) : mean;
             }
         }
-        picture = newPicture;
+    }
+
+    /**
+     * Replaces each colour component of every pixel by the median of the
+     * square of pixels around it, removing noise while keeping edges sharp.
+     *
+     * @param radius
+     *          the distance from each pixel to the edges of its square
+     */
+    public void median(int radius) {
+        if (inRegion(radius, false, width, height,
+                (part, x, y) -> part.median(radius))) {
+            return;
+        }
+        replace(RankFilter.median(picture, radius));
+    }
+
+    /**
+     * Replaces each colour component of every pixel by the minimum of the
+     * square of pixels around it, shrinking bright areas.
+     *
+     * @param radius
+     *          the distance from each pixel to the edges of its square
+     */
+    public void erode(int radius) {
+        if (inRegion(radius, false, width, height,
+                (part, x, y) -> part.erode(radius))) {
+            return;
+        }
+        replace(RankFilter.minimum(picture, radius));
+    }
+
+    /**
+     * Replaces each colour component of every pixel by the maximum of the
+     * square of pixels around it, growing bright areas.
+     *
+     * @param radius
+     *          the distance from each pixel to the edges of its square
+     */
+    public void dilate(int radius) {
+        if (inRegion(radius, false, width, height,
+                (part, x, y) -> part.dilate(radius))) {
+            return;
+        }
+        replace(RankFilter.maximum(picture, radius));
     }
 
     /**
@@ -236,26 +610,6 @@ public class Process {
 
     }
 
-    /**
-     * Gets the blurred pixel by computing the average of surrounding pixels.
-     *
-     * @param i
-     *          the x-coordinate of the pixel to be blurred
-     * @param j
-     *          the y-coordinate of the pixel to be blurred
-     */
-    private Color getBlurredPixel(int i, int j) {
-        Color blurredPixel = new Color(0, 0, 0);
-        for (int m = i - 1; m <= i + 1; m++) {
-            for (int n = j - 1; n <= j + 1; n++) {
-                Color pixel = picture.getPixel(m, n);
-                addPixel(blurredPixel, pixel);
-            }
-        }
-        pixelDiv(blurredPixel, 9);
-        return blurredPixel;
-    }
-
     /**
      * Combines pictures from an array to create a mosaic with tiles of a
      * certain size.
@@ -272,47 +626,59 @@ public class Process {
      *          the array of pictures to be combined
      */
     public void mosaic(int tileSize, Picture[] pictures) {
-        Tuple<Integer, Integer> dimensions = trimDimensions(width, height, tileSize, pictures);
+        if (inRegion(0, false, minWidth(pictures), minHeight(pictures),
+                (part, x, y) -> part.mosaic(tileSize, crop(pictures, x, y,
+                        part.width, part.height)))) {
+            return;
+        }
+        Tuple<Integer, Integer> dimensions = trimDimensions(tileSize, pictures);
         int minWidth = dimensions.getX();
         int minHeight = dimensions.getY();
-        Picture newPicture = Utils.createPicture(minWidth, minHeight);
+        Picture newPicture = Utils.createPicture(minWidth, minHeight,
+                pictures[0].hasAlpha());
+        int[] dst = newPicture.getPixels();
         int numberOfPictures = pictures.length;
-        int m = 0, n;
-         for(int j = 0; j < minHeight; j += tileSize) {
-             n = m;
-             for(int i = 0; i < minWidth; i += tileSize) {
-                 changeTile(i, j, tileSize, newPicture, pictures[n]);
-                 n++;
-                 n = n % numberOfPictures;
+        Parallel.forRows(minWidth, minHeight, (band, startRow, endRow) -> {
+            for (int j = startRow; j < endRow; j++) {
+                int n = j / tileSize % numberOfPictures;
+                for (int i = 0; i < minWidth; i += tileSize) {
+                    copyRow(pictures[n], newPicture, dst, i, j, tileSize);
+                    n = (n + 1) % numberOfPictures;
+                }
             }
-             m++;
-             m = m % numberOfPictures;
-        }
-        picture = newPicture;
+        });
+        replace(newPicture);
     }
 
     /**
-     * Modifies picture1 by replacing a certain tile with the corresponding
-     * tile from picture2.
+     * Copies part of a row of pixels from one picture into the raster of
+     * another, setting or clearing their alpha as the destination needs.
      *
-     * @param i
-     *          the x-coordinate of the top-left corner of the tile
-     * @param j
-     *          the y-coordinate of the top-left corner of the tile
-     * @param tileSize
-     *          the size of a single square mosaic tile
-     * @param picture1
-     *          the picture to be modified by replacing the square region with
-     *          a mosaic tile
-     * @param picture2
-     *          the picture from which the tile will be taken
+     * @param source
+     *          the picture to copy from
+     * @param destination
+     *          the picture to copy to
+     * @param dst
+     *          the raster of the destination
+     * @param x
+     *          the x-coordinate of the first pixel
+     * @param y
+     *          the y-coordinate of the row
+     * @param length
+     *          the number of pixels to copy
      */
-    private void changeTile(int i, int j, int tileSize, Picture picture1, Picture picture2) {
-        for(int m = i; m < i + tileSize; m ++) {
-            for(int n = j; n < j + tileSize; n ++) {
-                picture1.setPixel(m, n, picture2.getPixel(m, n));
-
-            }
+    private static void copyRow(Picture source, Picture destination,
+            int[] dst, int x, int y, int length) {
+        int[] src = source.raster();
+        int from = y * source.getWidth() + x;
+        int to = y * destination.getWidth() + x;
+        if (source.hasAlpha() == destination.hasAlpha()) {
+            System.arraycopy(src, from, dst, to, length);
+            return;
+        }
+        int opaque = destination.hasAlpha() ? 0xff000000 : 0;
+        for (int i = 0; i < length; i++) {
+            dst[to + i] = opaque | (src[from + i] & 0xffffff);
         }
     }
 
@@ -320,17 +686,16 @@ public class Process {
      * Gets the minimum individual width and height from the array of
      * pictures and trims them to a multiple of tileSize.
      *
-     * @param minWidth
-     *          the variable which will hold the minimum and trimmed width
-     * @param minHeight
-     *          the variable which will hold the minimum and trimmed height
      * @param tileSize
      *          the size of a single square mosaic tile
      * @param pictures
      *          the array of pictures
+     * @return the trimmed width and height
      */
-    private Tuple<Integer, Integer> trimDimensions(int minWidth, int minHeight, int tileSize, Picture[] pictures) {
-        getMins(minWidth, minHeight, pictures);
+    private Tuple<Integer, Integer> trimDimensions(int tileSize,
+            Picture[] pictures) {
+        int minWidth = minWidth(pictures);
+        int minHeight = minHeight(pictures);
         minWidth = minWidth - (minWidth % tileSize);
         minHeight = minHeight - (minHeight % tileSize);
         Tuple<Integer, Integer> dimensions= new utils.Tuple<>(minWidth, minHeight);
@@ -338,34 +703,133 @@ public class Process {
     }
 
     /**
-     * Adds the individual colour components of the two pixels.
-     *
-     * @param pixel1
-     *          the pixel which will hold the added values of each colour
-     *          component
-     * @param pixel2
-     *          the pixel to be added
+     * An operation applied to the part of the picture under the region of
+     * interest.
      */
-    private void addPixel(Color pixel1, Color pixel2) {
-        pixel1.setRed(pixel1.getRed() + pixel2.getRed());
-        pixel1.setBlue(pixel1.getBlue() + pixel2.getBlue());
-        pixel1.setGreen(pixel1.getGreen() + pixel2.getGreen());
+    private interface Part {
+        /**
+         * Transforms the part.
+         *
+         * @param part
+         *          the Process holding a copy of the part
+         * @param x
+         *          the x-coordinate of the part's top-left corner in the
+         *          whole picture
+         * @param y
+         *          the y-coordinate of the part's top-left corner in the
+         *          whole picture
+         */
+        void run(Process part, int x, int y);
     }
 
     /**
-     * Divides the intensity of each colour component by a number.
+     * Applies an operation to the region of interest only, if there is one.
+     * The operation runs on a copy of the region's bounding rectangle,
+     * widened by a halo of neighbouring pixels, and the selected pixels of
+     * the result are then written back.
      *
-     * @param pixel
-     *          the pixel whixh will be modified by dividing each colour
-     *          compnent intensity
-     * @param n
-     *          the integer by which the intensity of the colour components
-     *          will be divided
-     */
-    private void pixelDiv(Color pixel, int n) {
-        pixel.setRed(pixel.getRed() / n);
-        pixel.setBlue(pixel.getBlue() / n);
-        pixel.setGreen(pixel.getGreen() / n);
+     * @param halo
+     *          how many pixels around each pixel the operation reads
+     * @param centred
+     *          whether a result of a different size is centred on the region
+     *          rather than placed at its top-left corner
+     * @param limitWidth
+     *          the width of the area the operation can work on
+     * @param limitHeight
+     *          the height of the area the operation can work on
+     * @param operation
+     *          the operation to apply
+     * @return false if there is no region, so the operation must be applied
+     * to the whole picture
+     */
+    private boolean inRegion(int halo, boolean centred, int limitWidth,
+            int limitHeight, Part operation) {
+        if (region == null) {
+            return false;
+        }
+        int limitX = Math.min(width, limitWidth);
+        int limitY = Math.min(height, limitHeight);
+        Region clipped = region.clip(limitX, limitY);
+        if (clipped == null) {
+            return true;
+        }
+        int left = Math.max(0, clipped.getX() - halo);
+        int top = Math.max(0, clipped.getY() - halo);
+        int right = Math.min(limitX, clipped.getX() + clipped.getWidth()
+                + halo);
+        int bottom = Math.min(limitY, clipped.getY() + clipped.getHeight()
+                + halo);
+        Process part = new Process(Utils.crop(picture, left, top,
+                right - left, bottom - top));
+        part.owned = true;
+        operation.run(part, left, top);
+
+        Picture result = part.picture;
+        int resultWidth = result.getWidth();
+        int resultHeight = result.getHeight();
+        int resultX = left;
+        int resultY = top;
+        if (centred) {
+            resultX = clipped.getX() + Math.floorDiv(clipped.getWidth()
+                    - resultWidth, 2);
+            resultY = clipped.getY() + Math.floorDiv(clipped.getHeight()
+                    - resultHeight, 2);
+        }
+        int[] src = result.raster();
+        int[] dst = picture.getPixels();
+        // keep the top byte of pixels without alpha clear
+        int keep = picture.hasAlpha() ? 0xffffffff : 0xffffff;
+        int set = picture.hasAlpha() && !result.hasAlpha() ? 0xff000000 : 0;
+        int x0 = resultX;
+        int y0 = resultY;
+        clipped.forSpans(clipped.getY(), clipped.getY() + clipped.getHeight(),
+                (y, startX, endX) -> {
+                    if (y < y0 || y >= y0 + resultHeight) {
+                        return;
+                    }
+                    int from = Math.max(startX, x0);
+                    int to = Math.min(endX, x0 + resultWidth);
+                    int s = (y - y0) * resultWidth - x0;
+                    for (int x = from; x < to; x++) {
+                        dst[y * width + x] = (src[s + x] & keep) | set;
+                    }
+                });
+        RasterPool.release(result);
+        return true;
+    }
+
+    /**
+     * Copies the same rectangle out of each of an array of pictures.
+     */
+    private static Picture[] crop(Picture[] sources, int x, int y, int w,
+            int h) {
+        Picture[] copies = new Picture[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            copies[i] = Utils.crop(sources[i], x, y, w, h);
+        }
+        return copies;
+    }
+
+    /**
+     * Computes the smallest width in an array of pictures.
+     */
+    private static int minWidth(Picture[] pictures) {
+        int min = Integer.MAX_VALUE;
+        for (Picture p : pictures) {
+            min = Math.min(min, p.getWidth());
+        }
+        return min;
+    }
+
+    /**
+     * Computes the smallest height in an array of pictures.
+     */
+    private static int minHeight(Picture[] pictures) {
+        int min = Integer.MAX_VALUE;
+        for (Picture p : pictures) {
+            min = Math.min(min, p.getHeight());
+        }
+        return min;
     }
 
 }
@@ -0,0 +1,213 @@
+package picture;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Builds the pyramid of a picture for a zoomable viewer: the picture at
+ * full resolution (level 0) and at every coarser level down to a single
+ * pixel, each cut into square tiles.
+ * <p>
+ * Each level is half the size of the one before it (rounding up), every
+ * pixel averaging a 2x2 block, so the whole pyramid is built in one pass
+ * from the source with no resampling. Levels are reduced in parallel, and
+ * the tiles of each level are handed out, also in parallel, as soon as the
+ * level is complete, so at most two levels are held at once.
+ * <p>
+ * A fast preview of an operation can be had by running it on a coarse level
+ * with {@link #preview(Picture, int, Consumer)} before running it on the
+ * full picture.
+ */
+public class Pyramid {
+
+  /**
+   * Receives the tiles of a pyramid as they are produced. Tiles of the same
+   * level may be passed from several threads at once.
+   */
+  public interface TileSink {
+
+    /**
+     * Accept one tile.
+     *
+     * @param level
+     *          the level of the tile, 0 being full resolution
+     * @param column
+     *          the column of the tile, from the left
+     * @param row
+     *          the row of the tile, from the top
+     * @param tile
+     *          the pixels of the tile, which is square except along the
+     *          right and bottom edges, and is only valid during the call
+     * @throws IOException
+     *           if the tile could not be stored
+     */
+    void accept(int level, int column, int row, Picture tile)
+        throws IOException;
+  }
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private Pyramid() {
+  }
+
+  /**
+   * Return the number of levels in the pyramid of a picture.
+   *
+   * @param width
+   *          the width of the picture
+   * @param height
+   *          the height of the picture
+   * @return the number of levels, the last of which is a single pixel.
+   */
+  public static int levels(int width, int height) {
+    int levels = 1;
+    for (int size = Math.max(width, height); size > 1; size = (size + 1) / 2) {
+      levels++;
+    }
+    return levels;
+  }
+
+  /**
+   * Return one level of the pyramid of a picture.
+   *
+   * @param picture
+   *          the picture at full resolution, which is left unchanged
+   * @param level
+   *          the level to compute, 0 being full resolution
+   * @return a new picture holding the level.
+   */
+  public static Picture level(Picture picture, int level) {
+    if (level < 0) {
+      throw new IllegalArgumentException("invalid level " + level);
+    }
+    if (level == 0) {
+      return Utils.crop(picture, 0, 0, picture.getWidth(),
+          picture.getHeight());
+    }
+    Picture result = Resampler.reduce(picture, 2, 2);
+    for (int i = 1; i < level; i++) {
+      Picture reduced = Resampler.reduce(result, 2, 2);
+      RasterPool.release(result);
+      result = reduced;
+    }
+    return result;
+  }
+
+  /**
+   * Run an operation on a coarse level of a picture, for a preview of its
+   * result at a fraction of the cost.
+   *
+   * @param picture
+   *          the picture at full resolution, which is left unchanged
+   * @param level
+   *          the level to run the operation on; each level has a quarter of
+   *          the pixels of the one before it
+   * @param operation
+   *          the operation, which should not depend on the size of the
+   *          picture
+   * @return the result of the operation on the level.
+   */
+  public static Picture preview(Picture picture, int level,
+      Consumer<Process> operation) {
+    Process process = new Process(level(picture, level));
+    operation.accept(process);
+    return process.getPicture();
+  }
+
+  /**
+   * Build the pyramid of a picture, passing its tiles to a sink level by
+   * level, from full resolution to a single pixel.
+   *
+   * @param picture
+   *          the picture at full resolution, which is left unchanged
+   * @param tileSize
+   *          the side of the tiles
+   * @param sink
+   *          where the tiles go
+   * @throws IOException
+   *           if the sink fails to store a tile
+   */
+  public static void build(Picture picture, int tileSize, TileSink sink)
+      throws IOException {
+    if (tileSize < 1) {
+      throw new IllegalArgumentException("invalid tile size " + tileSize);
+    }
+    int levels = levels(picture.getWidth(), picture.getHeight());
+    Picture current = picture;
+    for (int level = 0; level < levels; level++) {
+      if (level > 0) {
+        Picture reduced = Resampler.reduce(current, 2, 2);
+        if (current != picture) {
+          RasterPool.release(current);
+        }
+        current = reduced;
+      }
+      emit(current, level, tileSize, sink);
+    }
+    if (current != picture) {
+      RasterPool.release(current);
+    }
+  }
+
+  /**
+   * Build the pyramid of a picture as PNG files in a directory: the tile in
+   * a given column and row of a level is saved as
+   * <tt>level/column_row.png</tt>.
+   *
+   * @param picture
+   *          the picture at full resolution, which is left unchanged
+   * @param tileSize
+   *          the side of the tiles
+   * @param directory
+   *          the directory to write to, which is created if needed
+   * @throws IOException
+   *           if a tile cannot be written
+   */
+  public static void write(Picture picture, int tileSize, Path directory)
+      throws IOException {
+    build(picture, tileSize, (level, column, row, tile) -> {
+      Path folder = directory.resolve(Integer.toString(level));
+      Files.createDirectories(folder);
+      Path file = folder.resolve(column + "_" + row + ".png");
+      if (!Utils.savePicture(tile, file.toString())) {
+        throw new IOException("could not write " + file);
+      }
+    });
+  }
+
+  /**
+   * Cut a level into tiles and pass them to the sink, spreading the tiles
+   * over several cores.
+   */
+  private static void emit(Picture picture, int level, int tileSize,
+      TileSink sink) throws IOException {
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    int columns = (width + tileSize - 1) / tileSize;
+    int count = columns * ((height + tileSize - 1) / tileSize);
+    int bands = Math.min(count, Parallel.getParallelism());
+    try {
+      Parallel.forBands(bands, count, (band, start, end) -> {
+        for (int t = start; t < end; t++) {
+          int x = t % columns * tileSize;
+          int y = t / columns * tileSize;
+          Picture tile = Utils.crop(picture, x, y,
+              Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+          try {
+            sink.accept(level, t % columns, t / columns, tile);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          } finally {
+            RasterPool.release(tile);
+          }
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+}
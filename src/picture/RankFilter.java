@@ -0,0 +1,305 @@
+package picture;
+
+import java.util.Arrays;
+
+/**
+ * Rank filters: median, minimum (erosion) and maximum (dilation) over a
+ * square window of any radius. Each colour component (and alpha, if the
+ * picture has it) is filtered separately. Pixels outside the picture are
+ * taken to repeat the nearest edge pixel.
+ * <p>
+ * The filters use the constant time algorithm of Perreault and H&eacute;bert:
+ * a histogram is kept for each column of the window, covering the window's
+ * rows, and is updated by one pixel in and one out as the window moves
+ * down; the histogram of the whole window is updated by one column in and
+ * one out as it moves right. Histograms have a coarse level of 16 buckets,
+ * which is always kept up to date, and a fine level of 256 bins, each
+ * bucket of which is only brought up to date when the rank falls in it.
+ * The cost per pixel therefore does not depend on the radius.
+ * <p>
+ * The picture is split into bands of rows, which run on several cores, and
+ * each band into strips of columns, so that the column histograms stay
+ * small enough to be cached.
+ */
+public class RankFilter {
+
+  /** The width of the strips a band of rows is processed in. */
+  private static final int STRIP = 256;
+
+  /** The number of fine bins in each coarse bucket. */
+  private static final int BUCKET = 16;
+
+  /** The shift of each component in a packed pixel. */
+  private static final int[] SHIFTS = {16, 8, 0, 24};
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private RankFilter() {
+  }
+
+  /**
+   * Replace each component of every pixel by the median of the window
+   * around it.
+   *
+   * @param picture
+   *          the picture to filter, which is left unchanged
+   * @param radius
+   *          the distance from the centre of the window to its edges
+   * @return a new, filtered picture.
+   */
+  public static Picture median(Picture picture, int radius) {
+    long side = 2L * radius + 1;
+    return filter(picture, radius, (int) (side * side / 2));
+  }
+
+  /**
+   * Replace each component of every pixel by the minimum of the window
+   * around it, eroding bright areas.
+   *
+   * @param picture
+   *          the picture to filter, which is left unchanged
+   * @param radius
+   *          the distance from the centre of the window to its edges
+   * @return a new, filtered picture.
+   */
+  public static Picture minimum(Picture picture, int radius) {
+    return filter(picture, radius, 0);
+  }
+
+  /**
+   * Replace each component of every pixel by the maximum of the window
+   * around it, dilating bright areas.
+   *
+   * @param picture
+   *          the picture to filter, which is left unchanged
+   * @param radius
+   *          the distance from the centre of the window to its edges
+   * @return a new, filtered picture.
+   */
+  public static Picture maximum(Picture picture, int radius) {
+    long side = 2L * radius + 1;
+    return filter(picture, radius, (int) (side * side - 1));
+  }
+
+  /**
+   * Replace each component of every pixel by the value of a given rank in
+   * the window around it.
+   *
+   * @param picture
+   *          the picture to filter, which is left unchanged
+   * @param radius
+   *          the distance from the centre of the window to its edges
+   * @param rank
+   *          the rank of the value to pick, from 0 (the minimum) to
+   *          <tt>(2 * radius + 1)^2 - 1</tt> (the maximum)
+   * @return a new, filtered picture.
+   * @throws IllegalArgumentException
+   *           if the radius or rank is out of range
+   */
+  public static Picture filter(Picture picture, int radius, int rank) {
+    long side = 2L * radius + 1;
+    if (radius < 0 || side * side > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("invalid radius " + radius);
+    }
+    if (rank < 0 || rank >= side * side) {
+      throw new IllegalArgumentException("invalid rank " + rank);
+    }
+    int width = picture.getWidth();
+    int height = picture.getHeight();
+    Picture result = Utils.createPicture(width, height, picture.hasAlpha());
+    int[] src = picture.raster();
+    int[] dst = result.getPixels();
+    if (radius == 0) {
+      System.arraycopy(src, 0, dst, 0, width * height);
+      return result;
+    }
+    int channels = picture.hasAlpha() ? 4 : 3;
+    Parallel.forRows(width, height, (band, startRow, endRow) -> {
+      Window window = new Window(Math.min(STRIP, width) + 2 * radius,
+          channels, radius, rank);
+      for (int x = 0; x < width; x += STRIP) {
+        window.filter(src, dst, width, height, x, Math.min(width, x + STRIP),
+            startRow, endRow);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * The histograms of a moving window, for one band of rows.
+   */
+  private static final class Window {
+
+    private final int channels;
+    private final int radius;
+    private final int rank;
+
+    /** The fine histogram of each column, by channel then column. */
+    private final char[][] columnFine;
+
+    /** The coarse histogram of each column, by channel then column. */
+    private final char[][] columnCoarse;
+
+    /** The fine histogram of the window, by channel. */
+    private final int[][] fine;
+
+    /** The coarse histogram of the window, by channel. */
+    private final int[][] coarse;
+
+    /**
+     * For each channel and bucket, the position of the window when its fine
+     * bins were last brought up to date, or -1 if they never were.
+     */
+    private final int[][] updated;
+
+    Window(int columns, int channels, int radius, int rank) {
+      this.channels = channels;
+      this.radius = radius;
+      this.rank = rank;
+      columnFine = new char[channels][columns * 256];
+      columnCoarse = new char[channels][columns * BUCKET];
+      fine = new int[channels][256];
+      coarse = new int[channels][BUCKET];
+      updated = new int[channels][BUCKET];
+    }
+
+    /**
+     * Filter the pixels of a rectangle.
+     */
+    void filter(int[] src, int[] dst, int width, int height, int startX,
+        int endX, int startRow, int endRow) {
+      int columns = endX - startX + 2 * radius;
+      for (int c = 0; c < channels; c++) {
+        Arrays.fill(columnFine[c], 0, columns * 256, (char) 0);
+        Arrays.fill(columnCoarse[c], 0, columns * BUCKET, (char) 0);
+      }
+      for (int dy = -radius; dy <= radius; dy++) {
+        int row = clamp(startRow + dy, height) * width;
+        for (int j = 0; j < columns; j++) {
+          add(j, src[row + clamp(startX - radius + j, width)], 1);
+        }
+      }
+
+      for (int y = startRow; y < endRow; y++) {
+        if (y > startRow) {
+          int out = clamp(y - radius - 1, height) * width;
+          int in = clamp(y + radius, height) * width;
+          for (int j = 0; j < columns; j++) {
+            int x = clamp(startX - radius + j, width);
+            add(j, src[out + x], -1);
+            add(j, src[in + x], 1);
+          }
+        }
+        startRow(columns);
+        for (int i = 0; i < endX - startX; i++) {
+          if (i > 0) {
+            slide(i);
+          }
+          int rgb = 0;
+          for (int c = 0; c < channels; c++) {
+            rgb |= select(c, i) << SHIFTS[c];
+          }
+          dst[y * width + startX + i] = rgb;
+        }
+      }
+    }
+
+    /**
+     * Add a pixel to, or remove it from, the histograms of a column.
+     */
+    private void add(int column, int rgb, int count) {
+      for (int c = 0; c < channels; c++) {
+        int v = (rgb >>> SHIFTS[c]) & 0xff;
+        columnFine[c][column * 256 + v] += count;
+        columnCoarse[c][column * BUCKET + v / BUCKET] += count;
+      }
+    }
+
+    /**
+     * Set up the window at the start of a row, covering the first
+     * <tt>2 * radius + 1</tt> columns.
+     */
+    private void startRow(int columns) {
+      for (int c = 0; c < channels; c++) {
+        int[] k = coarse[c];
+        char[] h = columnCoarse[c];
+        Arrays.fill(k, 0);
+        for (int j = 0; j <= 2 * radius; j++) {
+          for (int b = 0; b < BUCKET; b++) {
+            k[b] += h[j * BUCKET + b];
+          }
+        }
+        Arrays.fill(updated[c], -1);
+      }
+    }
+
+    /**
+     * Move the window one column to the right, to position <tt>i</tt>,
+     * updating its coarse histograms only.
+     */
+    private void slide(int i) {
+      int in = (i + 2 * radius) * BUCKET;
+      int out = (i - 1) * BUCKET;
+      for (int c = 0; c < channels; c++) {
+        int[] k = coarse[c];
+        char[] h = columnCoarse[c];
+        for (int b = 0; b < BUCKET; b++) {
+          k[b] += h[in + b] - h[out + b];
+        }
+      }
+    }
+
+    /**
+     * Find the value of the selected rank of a channel in the window at
+     * position <tt>i</tt>.
+     */
+    private int select(int c, int i) {
+      int[] k = coarse[c];
+      int seen = 0;
+      int b = 0;
+      while (seen + k[b] <= rank) {
+        seen += k[b];
+        b++;
+      }
+
+      // bring the fine bins of the bucket up to date
+      int[] f = fine[c];
+      char[] h = columnFine[c];
+      int first = b * BUCKET;
+      int last = updated[c][b];
+      int side = 2 * radius + 1;
+      if (last < 0 || i - last >= side) {
+        Arrays.fill(f, first, first + BUCKET, 0);
+        for (int j = i; j < i + side; j++) {
+          for (int v = 0; v < BUCKET; v++) {
+            f[first + v] += h[j * 256 + first + v];
+          }
+        }
+      } else {
+        for (int j = last; j < i; j++) {
+          int out = j * 256 + first;
+          int in = (j + side) * 256 + first;
+          for (int v = 0; v < BUCKET; v++) {
+            f[first + v] += h[in + v] - h[out + v];
+          }
+        }
+      }
+      updated[c][b] = i;
+
+      int v = first;
+      while (seen + f[v] <= rank) {
+        seen += f[v];
+        v++;
+      }
+      return v;
+    }
+  }
+
+  /**
+   * Clamp a coordinate to the range 0 to <tt>size - 1</tt>.
+   */
+  private static int clamp(int value, int size) {
+    return value < 0 ? 0 : (value >= size ? size - 1 : value);
+  }
+}
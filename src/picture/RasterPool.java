@@ -0,0 +1,259 @@
+package picture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A pool of the arrays backing picture rasters, so that operations which
+ * produce a new picture can reuse the raster of one which is no longer
+ * needed instead of allocating a new one for every operation.
+ * <p>
+ * Arrays are kept in size classes, eight for each power of two, and a
+ * request is served by an array of the smallest class which holds it, so an
+ * array may be up to an eighth longer than the picture it backs. A released
+ * array is kept only while the pool holds less than
+ * <tt>picture.pool.maxBytes</tt> bytes (256 MiB by default; 0 disables the
+ * pool). <tt>Process</tt> releases the pictures it creates as soon as the
+ * next operation replaces them, so a chain of operations alternates between
+ * two rasters.
+ * <p>
+ * The pool also counts the bytes of the rasters it has handed out and not
+ * yet had back, and the peak of that count over each stage
+ * <tt>Metrics</tt> measures; stages which overlap each get their own peak.
+ * Rasters which are never released stay counted.
+ */
+public final class RasterPool {
+
+  /** The number of size classes for each power of two. */
+  private static final int STEPS = 8;
+
+  /** The released arrays, indexed by size class. */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static final ArrayDeque<int[]>[] FREE = new ArrayDeque[32 * STEPS];
+
+  /** The most bytes the pool keeps. */
+  private static long maxBytes = Long.getLong("picture.pool.maxBytes",
+      256L << 20);
+
+  /** The bytes held by the pool. */
+  private static long retainedBytes;
+
+  /** The number of requests served from the pool. */
+  private static long hits;
+
+  /** The number of requests which needed a new array. */
+  private static long misses;
+
+  /** The bytes of the arrays handed out and not yet released. */
+  private static long liveBytes;
+
+  /** The peaks being measured. */
+  private static final List<Peak> PEAKS = new ArrayList<>();
+
+  /**
+   * The most bytes of raster in use at once since it was started.
+   */
+  static final class Peak {
+
+    private long bytes;
+
+    private Peak(long bytes) {
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private RasterPool() {
+  }
+
+  /**
+   * Return a zeroed array of at least the given length, from the pool if it
+   * holds one.
+   */
+  static int[] acquire(int length) {
+    int size = classSize(length);
+    int[] array = null;
+    synchronized (RasterPool.class) {
+      if (maxBytes == 0) {
+        misses++;
+        handOut(length);
+        return new int[length];
+      }
+      ArrayDeque<int[]> free = FREE[index(size)];
+      if (free != null) {
+        array = free.poll();
+      }
+      if (array == null) {
+        misses++;
+        handOut(size);
+      } else {
+        hits++;
+        retainedBytes -= 4L * array.length;
+        handOut(array.length);
+      }
+    }
+    if (array == null) {
+      return new int[size];
+    }
+    Arrays.fill(array, 0, length, 0);
+    return array;
+  }
+
+  /**
+   * Return the raster of a picture to the pool. The picture must not be
+   * used afterwards.
+   *
+   * @param picture
+   *          a picture which is no longer needed, or null
+   */
+  public static void release(Picture picture) {
+    if (picture == null) {
+      return;
+    }
+    int[] array = picture.raster();
+    if (array.length < 1) {
+      return;
+    }
+    // the largest class the whole array can serve
+    int size = array.length <= STEPS ? array.length
+        : array.length >> shift(array.length) << shift(array.length);
+    synchronized (RasterPool.class) {
+      int index = index(size);
+      if (FREE[index] != null) {
+        for (int[] free : FREE[index]) {
+          if (free == array) {
+            // released twice
+            return;
+          }
+        }
+      }
+      liveBytes = Math.max(0, liveBytes - 4L * array.length);
+      if (retainedBytes + 4L * array.length > maxBytes) {
+        return;
+      }
+      if (FREE[index] == null) {
+        FREE[index] = new ArrayDeque<>();
+      }
+      FREE[index].push(array);
+      retainedBytes += 4L * array.length;
+    }
+  }
+
+  /**
+   * Set the most bytes the pool keeps, discarding every array it holds.
+   *
+   * @param bytes
+   *          the new limit; 0 disables the pool
+   */
+  public static synchronized void setMaxBytes(long bytes) {
+    maxBytes = bytes;
+    Arrays.fill(FREE, null);
+    retainedBytes = 0;
+  }
+
+  /**
+   * Return the number of bytes the pool holds.
+   *
+   * @return the bytes of the arrays waiting to be reused.
+   */
+  public static synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  /**
+   * Return the number of bytes of raster handed out by the pool (whether
+   * reused or newly allocated) and not yet released.
+   *
+   * @return the bytes of the rasters in use.
+   */
+  public static synchronized long getLiveBytes() {
+    return liveBytes;
+  }
+
+  /**
+   * Start measuring the peak of {@link #getLiveBytes()} from the bytes in
+   * use now.
+   *
+   * @return the peak, to be passed to {@link #endPeak(Peak)}.
+   */
+  static synchronized Peak startPeak() {
+    Peak peak = new Peak(liveBytes);
+    PEAKS.add(peak);
+    return peak;
+  }
+
+  /**
+   * Stop measuring a peak.
+   *
+   * @param peak
+   *          the peak returned by {@link #startPeak()}
+   * @return the most bytes of raster in use at once since it was started.
+   */
+  static synchronized long endPeak(Peak peak) {
+    PEAKS.remove(peak);
+    return peak.bytes;
+  }
+
+  /**
+   * Return the number of requests served by reusing an array.
+   *
+   * @return the number of hits.
+   */
+  public static synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Return the number of requests which needed a new array.
+   *
+   * @return the number of misses.
+   */
+  public static synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Account for an array of the given length being handed out; the caller
+   * holds the lock.
+   */
+  private static void handOut(int length) {
+    liveBytes += 4L * length;
+    for (Peak peak : PEAKS) {
+      peak.bytes = Math.max(peak.bytes, liveBytes);
+    }
+  }
+
+  /**
+   * Return the smallest class size of at least the given length.
+   */
+  private static int classSize(int length) {
+    if (length <= STEPS) {
+      return Math.max(1, length);
+    }
+    int shift = shift(length);
+    long size = ((long) length + (1 << shift) - 1) >> shift << shift;
+    return (int) Math.min(size, Integer.MAX_VALUE - 8);
+  }
+
+  /**
+   * Return the index of a size class.
+   */
+  private static int index(int size) {
+    if (size <= STEPS) {
+      return size;
+    }
+    int shift = shift(size);
+    return shift * STEPS + (size >> shift);
+  }
+
+  /**
+   * Return how many low bits of a length the size classes ignore.
+   */
+  private static int shift(int length) {
+    return 31 - Integer.numberOfLeadingZeros(length) - 3;
+  }
+}
@@ -0,0 +1,226 @@
+package picture;
+
+/**
+ * A region of interest: the part of a picture an operation is restricted to.
+ * A region is a rectangle, optionally narrowed down by a mask which selects
+ * individual pixels of the rectangle.
+ *
+ * @see picture.Process#setRegion(Region)
+ */
+public class Region {
+
+  /** The rectangle bounding the region. */
+  private final int x, y, width, height;
+
+  /**
+   * Which pixels of the rectangle are selected, or null if they all are.
+   * The pixel (x+i, y+j) is selected by <tt>mask[maskOffset + j * maskStride
+   * + i]</tt>, so clipped regions can share the mask of the region they were
+   * clipped from.
+   */
+  private final boolean[] mask;
+
+  private final int maskOffset, maskStride;
+
+  /**
+   * Construct a rectangular region.
+   *
+   * @param x
+   *          the x-coordinate of the top-left corner
+   * @param y
+   *          the y-coordinate of the top-left corner
+   * @param width
+   *          the width of the rectangle
+   * @param height
+   *          the height of the rectangle
+   * @throws IllegalArgumentException
+   *           if the width or height is negative
+   */
+  public Region(int x, int y, int width, int height) {
+    this(x, y, width, height, null, 0, 0);
+  }
+
+  private Region(int x, int y, int width, int height, boolean[] mask,
+      int maskOffset, int maskStride) {
+    if (width < 0 || height < 0) {
+      throw new IllegalArgumentException("invalid region size " + width + "x"
+          + height);
+    }
+    this.x = x;
+    this.y = y;
+    this.width = width;
+    this.height = height;
+    this.mask = mask;
+    this.maskOffset = maskOffset;
+    this.maskStride = maskStride;
+  }
+
+  /**
+   * Construct a region from a mask picture, selecting the pixels whose
+   * luminance is at least 128. The region is bounded by the smallest
+   * rectangle holding every selected pixel.
+   *
+   * @param picture
+   *          the mask, in the coordinates of the pictures it will be used on
+   * @return a new region, which is empty if no pixel is selected.
+   */
+  public static Region fromMask(Picture picture) {
+    int pictureWidth = picture.getWidth();
+    int pictureHeight = picture.getHeight();
+    int[] pixels = picture.raster();
+    boolean[] selected = new boolean[pictureWidth * pictureHeight];
+    int left = pictureWidth, top = pictureHeight, right = -1, bottom = -1;
+    for (int j = 0; j < pictureHeight; j++) {
+      for (int i = 0; i < pictureWidth; i++) {
+        if (PackedColor.luminance601(pixels[j * pictureWidth + i]) >= 128) {
+          selected[j * pictureWidth + i] = true;
+          left = Math.min(left, i);
+          right = Math.max(right, i);
+          top = Math.min(top, j);
+          bottom = Math.max(bottom, j);
+        }
+      }
+    }
+    if (right < 0) {
+      return new Region(0, 0, 0, 0);
+    }
+    return new Region(left, top, right - left + 1, bottom - top + 1,
+        selected, top * pictureWidth + left, pictureWidth);
+  }
+
+  /**
+   * Return the x-coordinate of the region's bounding rectangle.
+   *
+   * @return the x-coordinate of the top-left corner.
+   */
+  public int getX() {
+    return x;
+  }
+
+  /**
+   * Return the y-coordinate of the region's bounding rectangle.
+   *
+   * @return the y-coordinate of the top-left corner.
+   */
+  public int getY() {
+    return y;
+  }
+
+  /**
+   * Return the width of the region's bounding rectangle.
+   *
+   * @return the width of the rectangle.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Return the height of the region's bounding rectangle.
+   *
+   * @return the height of the rectangle.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Test if the region has a mask, so that it may not select every pixel of
+   * its bounding rectangle.
+   *
+   * @return <tt>true</tt> if the region has a mask.
+   */
+  public boolean hasMask() {
+    return mask != null;
+  }
+
+  /**
+   * Test if a pixel is part of the region.
+   *
+   * @param px
+   *          the x-coordinate of the pixel
+   * @param py
+   *          the y-coordinate of the pixel
+   * @return <tt>true</tt> if the pixel is selected.
+   */
+  public boolean contains(int px, int py) {
+    if (px < x || py < y || px >= x + width || py >= y + height) {
+      return false;
+    }
+    return mask == null
+        || mask[maskOffset + (py - y) * maskStride + (px - x)];
+  }
+
+  /**
+   * Return this region moved by the given offsets.
+   */
+  Region translate(int dx, int dy) {
+    if (dx == 0 && dy == 0) {
+      return this;
+    }
+    return new Region(x + dx, y + dy, width, height, mask, maskOffset,
+        maskStride);
+  }
+
+  /**
+   * Return the part of this region which lies within a picture of the given
+   * size, or null if there is none.
+   */
+  Region clip(int pictureWidth, int pictureHeight) {
+    int left = Math.max(x, 0);
+    int top = Math.max(y, 0);
+    int right = Math.min(x + width, pictureWidth);
+    int bottom = Math.min(y + height, pictureHeight);
+    if (right <= left || bottom <= top) {
+      return null;
+    }
+    return new Region(left, top, right - left, bottom - top, mask,
+        maskOffset + (top - y) * maskStride + (left - x), maskStride);
+  }
+
+  /**
+   * Something done to a horizontal run of pixels.
+   */
+  interface Span {
+    void run(int y, int startX, int endX);
+  }
+
+  /**
+   * Call a span for each horizontal run of selected pixels in a range of
+   * rows, row by row and from left to right.
+   *
+   * @param startRow
+   *          the first row, in picture coordinates
+   * @param endRow
+   *          the row after the last one
+   */
+  void forSpans(int startRow, int endRow, Span span) {
+    for (int row = Math.max(startRow, y); row < Math.min(endRow, y + height);
+        row++) {
+      if (mask == null) {
+        span.run(row, x, x + width);
+        continue;
+      }
+      int offset = maskOffset + (row - y) * maskStride;
+      int i = 0;
+      while (i < width) {
+        while (i < width && !mask[offset + i]) {
+          i++;
+        }
+        int start = i;
+        while (i < width && mask[offset + i]) {
+          i++;
+        }
+        if (start < i) {
+          span.run(row, x + start, x + i);
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return width + "x" + height + "+" + x + "+" + y
+        + (mask == null ? "" : " (masked)");
+  }
+}
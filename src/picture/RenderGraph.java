@@ -0,0 +1,308 @@
+package picture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * A chain of operations applied to a source picture, which keeps the output
+ * of every stage so that it can be brought up to date incrementally.
+ * <p>
+ * Each stage is an operation on a <tt>Process</tt> which keeps the size of
+ * the picture and computes each pixel only from the pixels within a given
+ * radius of it (0 for point operations, 1 for <tt>blur</tt>). Rendering
+ * works tile by tile, with the tiles of <tt>Picture.TILE_SIZE</tt>: a tile
+ * of a stage is recomputed only if the stage was changed there, or if a
+ * tile of its input within the stage's radius was recomputed (or, for the
+ * first stage, marked dirty in the source). Each recomputed tile runs the
+ * operation on a copy of the input tile widened by the radius, so results
+ * are identical to running the whole chain on the whole picture. Dirty
+ * tiles are spread over several cores. Operations see the part of the
+ * picture they work on through a <tt>Process</tt> which takes regions and
+ * positions in the coordinates of the whole picture.
+ * <p>
+ * Operations which depend on the whole picture (<tt>autoLevels</tt>,
+ * <tt>equalize</tt>, <tt>threshold()</tt> and <tt>floodFill</tt>) cannot
+ * be computed tile by tile. A stage found to run one is recomputed on the
+ * whole picture instead, whenever any of its input or its operation
+ * changes, and so are all the stages after it.
+ * <p>
+ * Every stage keeps a full-size picture, so a graph uses as much memory as
+ * one picture per stage.
+ */
+public class RenderGraph {
+
+  /**
+   * A stage of the graph.
+   */
+  public static class Stage {
+
+    /** How far from each pixel the operation reads. */
+    private final int radius;
+
+    /** The operation. */
+    private Consumer<Process> operation;
+
+    /** The output of the stage, or null if it was never rendered. */
+    private Picture output;
+
+    /** Tiles of the output to recompute, or null if there are none. */
+    private boolean[] invalid;
+
+    /** Whether the operation depends on the whole picture. */
+    private boolean global;
+
+    private Stage(int radius, Consumer<Process> operation) {
+      this.radius = radius;
+      this.operation = operation;
+    }
+
+    /**
+     * Return the radius of the stage.
+     *
+     * @return how far from each pixel the operation reads.
+     */
+    public int getRadius() {
+      return radius;
+    }
+
+    /**
+     * Replace the operation of this stage, so that the whole stage is
+     * recomputed by the next render.
+     *
+     * @param operation
+     *          the new operation
+     */
+    public void setOperation(Consumer<Process> operation) {
+      setOperation(operation, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Replace the operation of this stage where only the pixels in a
+     * rectangle are affected by the change, so that only the tiles it
+     * overlaps are recomputed by the next render.
+     *
+     * @param operation
+     *          the new operation
+     * @param x
+     *          the x-coordinate of the rectangle's top-left corner
+     * @param y
+     *          the y-coordinate of the rectangle's top-left corner
+     * @param width
+     *          the width of the rectangle
+     * @param height
+     *          the height of the rectangle
+     */
+    public void setOperation(Consumer<Process> operation, int x, int y,
+        int width, int height) {
+      this.operation = operation;
+      global = false;
+      if (output == null) {
+        return;
+      }
+      int columns = output.getTileColumns();
+      int rows = output.getTileRows();
+      if (invalid == null) {
+        invalid = new boolean[columns * rows];
+      }
+      int size = Picture.TILE_SIZE;
+      long endRow = ((long) y + height + size - 1) / size;
+      long endColumn = ((long) x + width + size - 1) / size;
+      for (int row = Math.max(0, y / size); row < Math.min(rows, endRow);
+          row++) {
+        for (int column = Math.max(0, x / size);
+            column < Math.min(columns, endColumn); column++) {
+          invalid[row * columns + column] = true;
+        }
+      }
+    }
+  }
+
+  /** The picture the first stage reads. */
+  private final Picture source;
+
+  /** The stages, in the order they are applied. */
+  private final List<Stage> stages = new ArrayList<>();
+
+  /** The number of tiles recomputed by the last render. */
+  private int renderedTiles;
+
+  /**
+   * Construct a new graph with no stages.
+   *
+   * @param source
+   *          the picture to process, whose dirty marks are consumed (and
+   *          cleared) by each render
+   */
+  public RenderGraph(Picture source) {
+    this.source = source;
+  }
+
+  /**
+   * Append a stage to the graph.
+   *
+   * @param radius
+   *          how far from each pixel the operation reads
+   * @param operation
+   *          the operation, which must keep the size of the picture
+   * @return the new stage, through which its operation can be changed.
+   */
+  public Stage addStage(int radius, Consumer<Process> operation) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("negative radius " + radius);
+    }
+    Stage stage = new Stage(radius, operation);
+    stages.add(stage);
+    return stage;
+  }
+
+  /**
+   * Bring the output of every stage up to date with the source and the
+   * operations, recomputing only the tiles which may have changed.
+   *
+   * @return the output of the last stage, which belongs to the graph and
+   *         must not be modified.
+   */
+  public Picture render() {
+    int columns = source.getTileColumns();
+    int rows = source.getTileRows();
+    boolean[] changed = new boolean[columns * rows];
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        changed[row * columns + column] = source.isDirty(column, row);
+      }
+    }
+    source.clearDirty();
+
+    renderedTiles = 0;
+    Picture input = source;
+    for (Stage stage : stages) {
+      boolean[] todo = grow(changed, columns, rows, stage.radius);
+      if (stage.output == null) {
+        stage.output = Utils.createPicture(source.getWidth(),
+            source.getHeight(), source.hasAlpha());
+        todo = new boolean[todo.length];
+        Arrays.fill(todo, true);
+      } else if (stage.invalid != null) {
+        for (int i = 0; i < todo.length; i++) {
+          todo[i] |= stage.invalid[i];
+        }
+      }
+      stage.invalid = null;
+      render(stage, input, todo, columns);
+      changed = todo;
+      input = stage.output;
+    }
+    return input;
+  }
+
+  /**
+   * Return the number of tiles, over all stages, recomputed by the last
+   * render.
+   *
+   * @return the number of tiles rendered.
+   */
+  public int getRenderedTiles() {
+    return renderedTiles;
+  }
+
+  /**
+   * Recompute the given tiles of a stage's output, or the whole output
+   * (marking every tile) if the stage depends on the whole picture.
+   */
+  private void render(Stage stage, Picture input, boolean[] todo,
+      int columns) {
+    int[] tiles = IntStream.range(0, todo.length).filter(i -> todo[i])
+        .toArray();
+    if (tiles.length == 0) {
+      return;
+    }
+    int[] dst = stage.output.getPixels();
+    if (!stage.global) {
+      renderedTiles += tiles.length;
+      Parallel.forBands(Math.min(Parallel.getParallelism(), tiles.length),
+          tiles.length, (band, start, end) -> {
+            for (int t = start; t < end; t++) {
+              int x = tiles[t] % columns * Picture.TILE_SIZE;
+              int y = tiles[t] / columns * Picture.TILE_SIZE;
+              if (renderArea(stage, input, dst, x, y,
+                  Math.min(Picture.TILE_SIZE, input.getWidth() - x),
+                  Math.min(Picture.TILE_SIZE, input.getHeight() - y))) {
+                stage.global = true;
+              }
+            }
+          });
+      if (!stage.global) {
+        return;
+      }
+    }
+    renderedTiles += todo.length;
+    renderArea(stage, input, dst, 0, 0, input.getWidth(),
+        input.getHeight());
+    Arrays.fill(todo, true);
+  }
+
+  /**
+   * Recompute a rectangle of a stage's output.
+   *
+   * @return whether the operation depends on the whole picture, in which
+   *         case the rectangle is only right if it covers the picture.
+   */
+  private static boolean renderArea(Stage stage, Picture input, int[] dst,
+      int x, int y, int tileWidth, int tileHeight) {
+    int width = input.getWidth();
+    int height = input.getHeight();
+    int left = Math.max(0, x - stage.radius);
+    int top = Math.max(0, y - stage.radius);
+    int right = Math.min(width, x + tileWidth + stage.radius);
+    int bottom = Math.min(height, y + tileHeight + stage.radius);
+
+    Picture part = Utils.crop(input, left, top, right - left, bottom - top);
+    Process process = new Process(part, left, top);
+    stage.operation.accept(process);
+    Picture result = process.getPicture();
+    if (result.getWidth() != right - left
+        || result.getHeight() != bottom - top) {
+      throw new IllegalStateException("stage changed the picture size");
+    }
+    int[] src = result.raster();
+    for (int j = 0; j < tileHeight; j++) {
+      System.arraycopy(src, (y - top + j) * (right - left) + x - left, dst,
+          (y + j) * width + x, tileWidth);
+    }
+    RasterPool.release(result);
+    if (result != part) {
+      RasterPool.release(part);
+    }
+    return process.isGlobal();
+  }
+
+  /**
+   * Mark every tile within a radius, in pixels, of a marked tile.
+   */
+  private static boolean[] grow(boolean[] tiles, int columns, int rows,
+      int radius) {
+    int reach = (radius + Picture.TILE_SIZE - 1) / Picture.TILE_SIZE;
+    if (reach == 0) {
+      return tiles.clone();
+    }
+    boolean[] grown = new boolean[tiles.length];
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        if (!tiles[row * columns + column]) {
+          continue;
+        }
+        for (int j = Math.max(0, row - reach);
+            j <= Math.min(rows - 1, row + reach); j++) {
+          for (int i = Math.max(0, column - reach);
+              i <= Math.min(columns - 1, column + reach); i++) {
+            grown[j * columns + i] = true;
+          }
+        }
+      }
+    }
+    return grown;
+  }
+}
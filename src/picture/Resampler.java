@@ -0,0 +1,371 @@
+package picture;
+
+/**
+ * Resizes pictures using a choice of reconstruction filters.
+ * A resize is performed as two separable passes, first horizontally then
+ * vertically. For each pass the filter weights of every output column (or
+ * row) are computed once, as 14-bit fixed point integers, and each pass is
+ * spread over several cores by rows.
+ * When shrinking by a factor of four or more, the picture is first reduced
+ * by averaging blocks of pixels, which is much faster than filtering over
+ * the same span, and the filter only performs the remaining reduction.
+ * Pictures with an alpha component are filtered with premultiplied
+ * colours, so the colour of transparent pixels does not bleed into their
+ * neighbours.
+ */
+public class Resampler {
+
+  /**
+   * The reconstruction filters available for resizing.
+   */
+  public enum Filter {
+
+    /** Picks the nearest source pixel. */
+    NEAREST(0.5) {
+      @Override
+      double weight(double x) {
+        return x > -0.5 && x <= 0.5 ? 1 : 0;
+      }
+    },
+
+    /** Linear interpolation between the two nearest source pixels. */
+    BILINEAR(1) {
+      @Override
+      double weight(double x) {
+        x = Math.abs(x);
+        return x < 1 ? 1 - x : 0;
+      }
+    },
+
+    /** Cubic convolution (a = -0.5) over the four nearest source pixels. */
+    BICUBIC(2) {
+      @Override
+      double weight(double x) {
+        final double a = -0.5;
+        x = Math.abs(x);
+        if (x < 1) {
+          return ((a + 2) * x - (a + 3)) * x * x + 1;
+        }
+        if (x < 2) {
+          return (((x - 5) * x + 8) * x - 4) * a;
+        }
+        return 0;
+      }
+    },
+
+    /** Windowed sinc over the six nearest source pixels. */
+    LANCZOS3(3) {
+      @Override
+      double weight(double x) {
+        if (x == 0) {
+          return 1;
+        }
+        if (x <= -3 || x >= 3) {
+          return 0;
+        }
+        double px = Math.PI * x;
+        return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+      }
+    };
+
+    /** How far from its centre the filter is non-zero, in source pixels. */
+    private final double support;
+
+    Filter(double support) {
+      this.support = support;
+    }
+
+    /**
+     * Return the weight of a source pixel at a given distance from the centre
+     * of the output pixel.
+     */
+    abstract double weight(double x);
+  }
+
+  /** The number of fractional bits in the fixed point weights. */
+  private static final int PRECISION = 14;
+
+  /**
+   * The reduction factor at which blocks of pixels are averaged before
+   * filtering.
+   */
+  private static final int REDUCE_GAP = 2;
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private Resampler() {
+  }
+
+  /**
+   * Resize a picture.
+   *
+   * @param picture
+   *          the picture to resize, which is left unchanged
+   * @param width
+   *          the width of the resized picture
+   * @param height
+   *          the height of the resized picture
+   * @param filter
+   *          the reconstruction filter to use
+   * @return a new picture of the requested size.
+   */
+  public static Picture resize(Picture picture, int width, int height,
+      Filter filter) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("invalid size " + width + "x" + height);
+    }
+    if (filter == Filter.NEAREST) {
+      return nearest(picture, width, height);
+    }
+    Picture source = picture;
+    int factorX = picture.getWidth() / width / REDUCE_GAP;
+    int factorY = picture.getHeight() / height / REDUCE_GAP;
+    if (factorX >= 2 || factorY >= 2) {
+      picture = reduce(picture, Math.max(1, factorX), Math.max(1, factorY));
+    }
+    if (picture.getWidth() != width) {
+      picture = recycle(picture, source, horizontal(picture, width, filter));
+    }
+    if (picture.getHeight() != height) {
+      picture = recycle(picture, source, vertical(picture, height, filter));
+    }
+    if (picture == source) {
+      picture = Utils.createPicture(width, height, source.hasAlpha());
+      System.arraycopy(source.raster(), 0, picture.getPixels(), 0,
+          width * height);
+    }
+    return picture;
+  }
+
+  /**
+   * Return the result of a pass, releasing its input to the
+   * <tt>RasterPool</tt> unless it is the source.
+   */
+  private static Picture recycle(Picture input, Picture source,
+      Picture result) {
+    if (input != source) {
+      RasterPool.release(input);
+    }
+    return result;
+  }
+
+  /**
+   * Shrink a picture by averaging blocks of pixels, weighting colours by
+   * their alpha if the picture has one. Pixels in the partial blocks along
+   * the right and bottom edges are averaged over the pixels present.
+   *
+   * @param picture
+   *          the picture to reduce
+   * @param factorX
+   *          the width of each block
+   * @param factorY
+   *          the height of each block
+   * @return a new picture, smaller by the given factors (rounding up).
+   */
+  public static Picture reduce(Picture picture, int factorX, int factorY) {
+    int srcWidth = picture.getWidth();
+    int srcHeight = picture.getHeight();
+    int width = (srcWidth + factorX - 1) / factorX;
+    int height = (srcHeight + factorY - 1) / factorY;
+    Picture result = Utils.createPicture(width, height, picture.hasAlpha());
+    int[] src = picture.raster();
+    int[] dst = result.getPixels();
+    boolean alpha = picture.hasAlpha();
+    Parallel.forRows(width, height, (band, startRow, endRow) -> {
+      for (int y = startRow; y < endRow; y++) {
+        int y0 = y * factorY;
+        int y1 = Math.min(y0 + factorY, srcHeight);
+        for (int x = 0; x < width; x++) {
+          int x0 = x * factorX;
+          int x1 = Math.min(x0 + factorX, srcWidth);
+          int a = 0, r = 0, g = 0, b = 0;
+          for (int j = y0; j < y1; j++) {
+            int row = j * srcWidth;
+            for (int i = x0; i < x1; i++) {
+              int rgb = alpha ? PackedColor.premultiply(src[row + i])
+                  : src[row + i];
+              a += rgb >>> 24;
+              r += (rgb >> 16) & 0xff;
+              g += (rgb >> 8) & 0xff;
+              b += rgb & 0xff;
+            }
+          }
+          int n = (y1 - y0) * (x1 - x0);
+          int mean = ((a + n / 2) / n << 24) | ((r + n / 2) / n << 16)
+              | ((g + n / 2) / n << 8) | (b + n / 2) / n;
+          dst[y * width + x] = alpha ? PackedColor.unpremultiply(mean) : mean;
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Resize by picking the source pixel nearest to the centre of each output
+   * pixel.
+   */
+  private static Picture nearest(Picture picture, int width, int height) {
+    int srcWidth = picture.getWidth();
+    int srcHeight = picture.getHeight();
+    int[] columns = new int[width];
+    for (int x = 0; x < width; x++) {
+      columns[x] = (int) Math.min(srcWidth - 1,
+          ((2L * x + 1) * srcWidth) / (2L * width));
+    }
+    Picture result = Utils.createPicture(width, height, picture.hasAlpha());
+    int[] src = picture.raster();
+    int[] dst = result.getPixels();
+    Parallel.forRows(width, height, (band, startRow, endRow) -> {
+      for (int y = startRow; y < endRow; y++) {
+        int row = (int) Math.min(srcHeight - 1,
+            ((2L * y + 1) * srcHeight) / (2L * height)) * srcWidth;
+        for (int x = 0; x < width; x++) {
+          dst[y * width + x] = src[row + columns[x]];
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Resize horizontally, keeping the height.
+   */
+  private static Picture horizontal(Picture picture, int width, Filter filter) {
+    int srcWidth = picture.getWidth();
+    int height = picture.getHeight();
+    Weights weights = new Weights(srcWidth, width, filter,
+        picture.hasAlpha());
+    Picture result = Utils.createPicture(width, height, picture.hasAlpha());
+    int[] src = picture.raster();
+    int[] dst = result.getPixels();
+    Parallel.forRows(width, height, (band, startRow, endRow) -> {
+      for (int y = startRow; y < endRow; y++) {
+        int row = y * srcWidth;
+        for (int x = 0; x < width; x++) {
+          dst[y * width + x] = weights.sample(src, row + weights.start[x], 1, x);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Resize vertically, keeping the width.
+   */
+  private static Picture vertical(Picture picture, int height, Filter filter) {
+    int width = picture.getWidth();
+    int srcHeight = picture.getHeight();
+    Weights weights = new Weights(srcHeight, height, filter,
+        picture.hasAlpha());
+    Picture result = Utils.createPicture(width, height, picture.hasAlpha());
+    int[] src = picture.raster();
+    int[] dst = result.getPixels();
+    Parallel.forRows(width, height, (band, startRow, endRow) -> {
+      for (int y = startRow; y < endRow; y++) {
+        int first = weights.start[y] * width;
+        for (int x = 0; x < width; x++) {
+          dst[y * width + x] = weights.sample(src, first + x, width, y);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * The fixed point filter weights of every output pixel along one axis.
+   */
+  private static final class Weights {
+
+    /** The first source pixel contributing to each output pixel. */
+    final int[] start;
+
+    /** The number of source pixels contributing to each output pixel. */
+    final int[] count;
+
+    /** The weights of each output pixel, <tt>stride</tt> apart. */
+    final int[] weights;
+
+    /** The largest number of contributing source pixels. */
+    final int stride;
+
+    /** Whether pixels are premultiplied by their alpha for filtering. */
+    final boolean premultiplied;
+
+    /**
+     * Compute the weights for resampling <tt>srcSize</tt> pixels to
+     * <tt>size</tt> pixels, premultiplying the pixels if they have alpha.
+     */
+    Weights(int srcSize, int size, Filter filter, boolean alpha) {
+      premultiplied = alpha;
+      double scale = (double) srcSize / size;
+      double filterScale = Math.max(scale, 1);
+      double support = filter.support * filterScale;
+      stride = (int) Math.ceil(support) * 2 + 1;
+      start = new int[size];
+      count = new int[size];
+      weights = new int[size * stride];
+      double[] raw = new double[stride];
+
+      for (int x = 0; x < size; x++) {
+        double centre = (x + 0.5) * scale;
+        int min = Math.max(0, (int) (centre - support + 0.5));
+        int max = Math.min(srcSize, (int) (centre + support + 0.5));
+        int n = Math.min(max - min, stride);
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+          raw[i] = filter.weight((min + i - centre + 0.5) / filterScale);
+          total += raw[i];
+        }
+        int fixedTotal = 0;
+        int largest = 0;
+        for (int i = 0; i < n; i++) {
+          int w = (int) Math.round(raw[i] / total * (1 << PRECISION));
+          weights[x * stride + i] = w;
+          fixedTotal += w;
+          if (w > weights[x * stride + largest]) {
+            largest = i;
+          }
+        }
+        // make the weights sum to exactly one so flat areas stay flat
+        weights[x * stride + largest] += (1 << PRECISION) - fixedTotal;
+        start[x] = min;
+        count[x] = n;
+      }
+    }
+
+    /**
+     * Compute the output pixel <tt>x</tt> from the source pixels starting at
+     * <tt>first</tt>, <tt>step</tt> apart.
+     */
+    int sample(int[] src, int first, int step, int x) {
+      int r = 1 << (PRECISION - 1);
+      int g = r;
+      int b = r;
+      int a = r;
+      int offset = x * stride;
+      for (int i = 0; i < count[x]; i++) {
+        int rgb = src[first + i * step];
+        if (premultiplied) {
+          rgb = PackedColor.premultiply(rgb);
+        }
+        int w = weights[offset + i];
+        a += (rgb >>> 24) * w;
+        r += ((rgb >> 16) & 0xff) * w;
+        g += ((rgb >> 8) & 0xff) * w;
+        b += (rgb & 0xff) * w;
+      }
+      int result = (clamp(a >> PRECISION) << 24)
+          | (clamp(r >> PRECISION) << 16) | (clamp(g >> PRECISION) << 8)
+          | clamp(b >> PRECISION);
+      return premultiplied ? PackedColor.unpremultiply(result) : result;
+    }
+
+    /**
+     * Clamp an intensity to the range 0 to 255.
+     */
+    private static int clamp(int value) {
+      return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+  }
+}
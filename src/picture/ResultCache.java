@@ -0,0 +1,252 @@
+package picture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import utils.Tuple;
+
+/**
+ * An on-disk cache of the results of previous runs, so that a repeated run
+ * (the same operation and arguments applied to input files with the same
+ * contents) copies the earlier result instead of recomputing it.
+ * <p>
+ * Entries are keyed by a SHA-256 hash of the arguments, with each input
+ * location replaced by a hash of the file's contents. Entries are written to
+ * a temporary file and atomically renamed into place, so several processes
+ * can share a cache directory and never see a partial entry. Reading an
+ * entry refreshes its modification time, and once the cache grows beyond
+ * its size limit the least recently used entries are deleted. Temporary
+ * files count towards the limit, and those left behind by a process which
+ * died before renaming them are deleted once they are an hour old.
+ * <p>
+ * The cache is enabled by setting the <tt>picture.cache</tt> system property
+ * to a directory; <tt>picture.cache.maxBytes</tt> sets the size limit
+ * (1 GiB by default).
+ */
+public class ResultCache {
+
+  /** The suffix of complete cache entries. */
+  private static final String SUFFIX = ".png";
+
+  /** The suffix of entries being written. */
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  /**
+   * The age after which a temporary file is taken to be abandoned, in
+   * milliseconds.
+   */
+  private static final long STALE_MILLIS = 60 * 60 * 1000;
+
+  /** The default size limit, in bytes. */
+  private static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+  /** The directory holding the entries. */
+  private final Path directory;
+
+  /** The size above which entries are evicted, in bytes. */
+  private final long maxBytes;
+
+  /**
+   * Construct a cache stored in the given directory.
+   *
+   * @param directory
+   *          the directory holding the entries, created if missing
+   * @param maxBytes
+   *          the total size of entries above which the least recently used
+   *          are deleted
+   * @throws IOException
+   *           if the directory cannot be created
+   */
+  public ResultCache(Path directory, long maxBytes) throws IOException {
+    this.directory = Files.createDirectories(directory);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Return the cache configured by the system properties, or null if
+   * caching is disabled or the directory cannot be created.
+   *
+   * @return the configured cache, or null.
+   */
+  public static ResultCache fromSystemProperties() {
+    String location = System.getProperty("picture.cache");
+    if (location == null) {
+      return null;
+    }
+    try {
+      return new ResultCache(Paths.get(location),
+          Long.getLong("picture.cache.maxBytes", DEFAULT_MAX_BYTES));
+    } catch (IOException e) {
+      System.err.println("could not create cache: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Compute the key of a run.
+   *
+   * @param arguments
+   *          the arguments of the run, excluding the destination
+   * @param inputs
+   *          for each argument, whether it is the location of an input file
+   * @return the key, or null if an input is not a readable local file.
+   */
+  public String key(String[] arguments, boolean[] inputs) {
+    MessageDigest digest = sha256();
+    for (int i = 0; i < arguments.length; i++) {
+      String part;
+      if (inputs[i]) {
+        Path input = Paths.get(arguments[i]);
+        if (!Files.isRegularFile(input)) {
+          return null;
+        }
+        try {
+          part = "file:" + hex(hash(input));
+        } catch (IOException e) {
+          return null;
+        }
+      } else {
+        part = "arg:" + arguments[i].trim();
+      }
+      digest.update(part.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    return hex(digest.digest());
+  }
+
+  /**
+   * Copy the cached result for a key to the destination.
+   *
+   * @param key
+   *          the key of the run
+   * @param destination
+   *          where to write the result
+   * @return true if the result was cached and has been copied.
+   */
+  public boolean copyTo(String key, Path destination) {
+    Path entry = directory.resolve(key + SUFFIX);
+    try {
+      Files.copy(entry, destination, StandardCopyOption.REPLACE_EXISTING);
+      Files.setLastModifiedTime(entry,
+          FileTime.fromMillis(System.currentTimeMillis()));
+      return true;
+    } catch (IOException e) {
+      // missing (or evicted by another process while copying)
+      return false;
+    }
+  }
+
+  /**
+   * Store the result of a run, evicting old entries if the cache has grown
+   * too large.
+   *
+   * @param key
+   *          the key of the run
+   * @param result
+   *          the file holding the result
+   * @throws IOException
+   *           if the result cannot be copied into the cache
+   */
+  public void store(String key, Path result) throws IOException {
+    Path temporary = Files.createTempFile(directory, key,
+        TEMPORARY_SUFFIX);
+    try {
+      Files.copy(result, temporary, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(temporary, directory.resolve(key + SUFFIX),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    evict();
+  }
+
+  /**
+   * Delete abandoned temporary files, then the least recently used entries
+   * until the cache is within its size limit. Temporary files still being
+   * written count towards the limit but are never deleted.
+   */
+  private void evict() throws IOException {
+    List<Tuple<Path, BasicFileAttributes>> entries = new ArrayList<>();
+    long total = 0;
+    long stale = System.currentTimeMillis() - STALE_MILLIS;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+        "*{" + SUFFIX + "," + TEMPORARY_SUFFIX + "}")) {
+      for (Path entry : stream) {
+        try {
+          BasicFileAttributes attributes = Files.readAttributes(entry,
+              BasicFileAttributes.class);
+          if (!entry.toString().endsWith(TEMPORARY_SUFFIX)) {
+            entries.add(new Tuple<>(entry, attributes));
+          } else if (attributes.lastModifiedTime().toMillis() < stale) {
+            Files.deleteIfExists(entry);
+            continue;
+          }
+          total += attributes.size();
+        } catch (NoSuchFileException e) {
+          // evicted or renamed by another process
+        }
+      }
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    entries.sort(
+        Comparator.comparing(entry -> entry.getY().lastModifiedTime()));
+    for (int i = 0; i < entries.size() && total > maxBytes; i++) {
+      Files.deleteIfExists(entries.get(i).getX());
+      total -= entries.get(i).getY().size();
+    }
+  }
+
+  /**
+   * Hash the contents of a file.
+   */
+  private static byte[] hash(Path file) throws IOException {
+    MessageDigest digest = sha256();
+    byte[] buffer = new byte[1 << 16];
+    try (InputStream in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Return a new SHA-256 digest.
+   */
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Return the lower-case hexadecimal representation of some bytes.
+   */
+  private static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,352 @@
+package picture;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Runs work over the tiles of an image on several cores, for operations
+ * whose working set is too large for a band of whole rows to stay cached:
+ * those reading a neighbourhood of each pixel, such as <tt>blur</tt>, and
+ * those remapping the whole image, such as <tt>rotate90</tt>, where each
+ * output row reads a column of the source.
+ * <p>
+ * The image is cut into square tiles, small enough for a tile of the output
+ * and the part of the source it reads (the tile widened by a halo) to fit in
+ * the cache of one core: <tt>picture.cacheBytes</tt> bytes (256 KiB, a
+ * typical L2, by default), unless <tt>picture.tileSize</tt> sets the side of
+ * the tiles directly. Tiles are taken row by row, and each worker starts
+ * with a contiguous run of them, so the tiles a worker processes are next to
+ * each other, share the halos they read and mostly lie in one band of rows,
+ * which on a machine with several memory nodes keeps most of a worker's
+ * writes to the pages it touched first. A worker which runs out of tiles
+ * steals the later half of the largest run left, so work is only split
+ * further when a core would otherwise be idle.
+ * <p>
+ * For each worker the scheduler counts the tiles it ran, the runs it stole
+ * and the time it was busy, which {@link #report()} summarises.
+ * Every operation produces the same result whatever the tile size and
+ * parallelism.
+ */
+public final class TileScheduler {
+
+  /** The smallest side of a tile, and the granularity of computed sizes. */
+  private static final int MIN_TILE_SIZE = 16;
+
+  /** The bytes of cache a tile and its halo should fit in. */
+  private static final long CACHE_BYTES = Long.getLong("picture.cacheBytes",
+      256L << 10);
+
+  /** The side of the tiles, or 0 to compute it from the cache size. */
+  private static volatile int tileSize = Integer.getInteger(
+      "picture.tileSize", 0);
+
+  /** The number of calls to {@link #forTiles}. */
+  private static long calls;
+
+  /** For each worker, the tiles it ran. */
+  private static long[] tiles = new long[0];
+
+  /** For each worker, the runs of tiles it stole. */
+  private static long[] steals = new long[0];
+
+  /** For each worker, the time it spent running tiles. */
+  private static long[] busyNanos = new long[0];
+
+  /** For each worker, the time of the calls it took part in. */
+  private static long[] elapsedNanos = new long[0];
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private TileScheduler() {
+  }
+
+  /**
+   * Work performed on one tile.
+   */
+  interface Tile {
+
+    /**
+     * Process the pixels of a rectangle of the output.
+     *
+     * @param x
+     *          the x-coordinate of the tile's top-left corner
+     * @param y
+     *          the y-coordinate of the tile's top-left corner
+     * @param width
+     *          the width of the tile
+     * @param height
+     *          the height of the tile
+     */
+    void run(int x, int y, int width, int height);
+  }
+
+  /**
+   * Return the side of the tiles used for an operation.
+   *
+   * @param halo
+   *          how many pixels around each output pixel the operation reads
+   * @return the side set by {@link #setTileSize(int)}, or else the largest
+   *         multiple of 16 for which a tile of the output and its source,
+   *         widened by the halo, fit in the cache.
+   */
+  public static int getTileSize(int halo) {
+    int size = tileSize;
+    if (size > 0) {
+      return size;
+    }
+    size = MIN_TILE_SIZE;
+    while (fits(size + MIN_TILE_SIZE, halo)) {
+      size += MIN_TILE_SIZE;
+    }
+    return size;
+  }
+
+  /**
+   * Set the side of the tiles.
+   *
+   * @param size
+   *          the new side, in pixels; 0 computes it from the cache size
+   */
+  public static void setTileSize(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("invalid tile size " + size);
+    }
+    tileSize = size;
+  }
+
+  /**
+   * Return true if a tile and its source fit in the cache.
+   */
+  private static boolean fits(long size, int halo) {
+    long source = size + 2L * halo;
+    return 4 * (size * size + source * source) <= CACHE_BYTES;
+  }
+
+  /**
+   * Split an image into tiles and run the work on each of them, returning
+   * once every tile has been processed. Small images, which
+   * <tt>Parallel</tt> would not split, run on the calling thread.
+   *
+   * @param width
+   *          width of the image the work writes
+   * @param height
+   *          height of the image the work writes
+   * @param halo
+   *          how many pixels around each output pixel the work reads
+   * @param work
+   *          the work to perform on each tile
+   */
+  static void forTiles(int width, int height, int halo, Tile work) {
+    int size = getTileSize(halo);
+    int columns = (width + size - 1) / size;
+    int count = columns * ((height + size - 1) / size);
+    if (count == 0) {
+      return;
+    }
+    int workers = Math.min(count, Parallel.bands(width, height));
+
+    // each worker starts with a contiguous run of tiles
+    Run[] runs = new Run[workers];
+    for (int w = 0; w < workers; w++) {
+      runs[w] = new Run((int) ((long) w * count / workers),
+          (int) ((long) (w + 1) * count / workers));
+    }
+    long[] ran = new long[workers];
+    long[] stole = new long[workers];
+    long[] busy = new long[workers];
+    long start = System.nanoTime();
+    IntConsumer worker = w -> {
+      Metrics.working();
+      Run run = runs[w];
+      while (true) {
+        int tile = run.next();
+        if (tile < 0) {
+          run = steal(runs, w);
+          if (run == null) {
+            return;
+          }
+          stole[w]++;
+          continue;
+        }
+        int x = tile % columns * size;
+        int y = tile / columns * size;
+        long tileStart = System.nanoTime();
+        work.run(x, y, Math.min(size, width - x), Math.min(size, height - y));
+        busy[w] += System.nanoTime() - tileStart;
+        ran[w]++;
+      }
+    };
+    if (workers == 1) {
+      worker.accept(0);
+    } else {
+      IntStream.range(0, workers).parallel().forEach(worker);
+    }
+    record(System.nanoTime() - start, ran, stole, busy);
+  }
+
+  /**
+   * Take the later half of the largest run of tiles left and make it the
+   * given worker's run.
+   *
+   * @return the worker's new run, or null if no tiles are left.
+   */
+  private static Run steal(Run[] runs, int thief) {
+    while (true) {
+      Run victim = null;
+      int most = 0;
+      for (Run run : runs) {
+        int left = run.left();
+        if (left > most) {
+          most = left;
+          victim = run;
+        }
+      }
+      if (victim == null) {
+        return null;
+      }
+      int[] stolen = victim.split();
+      if (stolen != null) {
+        runs[thief].reset(stolen[0], stolen[1]);
+        return runs[thief];
+      }
+      // the victim finished its run meanwhile, so look again
+    }
+  }
+
+  /**
+   * Add the statistics of a call to the totals.
+   */
+  private static synchronized void record(long nanos, long[] ran,
+      long[] stole, long[] busy) {
+    int workers = ran.length;
+    if (tiles.length < workers) {
+      tiles = Arrays.copyOf(tiles, workers);
+      steals = Arrays.copyOf(steals, workers);
+      busyNanos = Arrays.copyOf(busyNanos, workers);
+      elapsedNanos = Arrays.copyOf(elapsedNanos, workers);
+    }
+    calls++;
+    for (int w = 0; w < workers; w++) {
+      tiles[w] += ran[w];
+      steals[w] += stole[w];
+      busyNanos[w] += busy[w];
+      elapsedNanos[w] += nanos;
+    }
+  }
+
+  /**
+   * Return how busy each worker was, as the fraction of the time of the
+   * calls it took part in which it spent running tiles.
+   *
+   * @return the utilisation of each worker, from 0 to 1, indexed by worker.
+   */
+  public static synchronized double[] getUtilisation() {
+    double[] utilisation = new double[tiles.length];
+    for (int w = 0; w < utilisation.length; w++) {
+      utilisation[w] = elapsedNanos[w] == 0
+          ? 0 : Math.min(1, (double) busyNanos[w] / elapsedNanos[w]);
+    }
+    return utilisation;
+  }
+
+  /**
+   * Return the number of runs of tiles stolen, over all workers.
+   *
+   * @return the number of steals since the statistics were last reset.
+   */
+  public static synchronized long getSteals() {
+    long total = 0;
+    for (long count : steals) {
+      total += count;
+    }
+    return total;
+  }
+
+  /**
+   * Discard the statistics gathered so far.
+   */
+  public static synchronized void resetStatistics() {
+    calls = 0;
+    tiles = new long[0];
+    steals = new long[0];
+    busyNanos = new long[0];
+    elapsedNanos = new long[0];
+  }
+
+  /**
+   * Return a summary of the work done by each worker: the tiles it ran, the
+   * runs of tiles it stole and its utilisation, one worker per line.
+   *
+   * @return the summary.
+   */
+  public static synchronized String report() {
+    StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+        "tile scheduler: %d calls, %d workers", calls, tiles.length));
+    double[] utilisation = getUtilisation();
+    for (int w = 0; w < tiles.length; w++) {
+      report.append(String.format(Locale.ROOT,
+          "%n  worker %d: %d tiles, %d steals, %.1f%% busy", w, tiles[w],
+          steals[w], 100 * utilisation[w]));
+    }
+    return report.toString();
+  }
+
+  /**
+   * A run of consecutive tiles, from <tt>next</tt> (inclusive) to
+   * <tt>end</tt> (exclusive), taken from the front by the worker owning it
+   * and split from the back by thieves.
+   */
+  private static final class Run {
+
+    private int next;
+    private int end;
+
+    Run(int next, int end) {
+      this.next = next;
+      this.end = end;
+    }
+
+    /**
+     * Take the first tile of the run.
+     *
+     * @return the tile, or -1 if the run is empty.
+     */
+    synchronized int next() {
+      return next < end ? next++ : -1;
+    }
+
+    /**
+     * Return the number of tiles left.
+     */
+    synchronized int left() {
+      return end - next;
+    }
+
+    /**
+     * Remove the later half of the run, rounded up.
+     *
+     * @return the start and end of the removed tiles, or null if the run
+     *         is empty.
+     */
+    synchronized int[] split() {
+      if (next >= end) {
+        return null;
+      }
+      int middle = next + (end - next) / 2;
+      int[] stolen = {middle, end};
+      end = middle;
+      return stolen;
+    }
+
+    /**
+     * Replace the run by another.
+     */
+    synchronized void reset(int start, int stop) {
+      next = start;
+      end = stop;
+    }
+  }
+}
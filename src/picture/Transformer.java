@@ -0,0 +1,335 @@
+package picture;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+
+/**
+ * Applies affine transformations (rotation, scaling, shearing, translation
+ * and any combination of them) to pictures.
+ * Either the transformed picture is just large enough to hold the whole
+ * transformed source, which discards any translation, or its size is given
+ * and the transformation places the source on that canvas, translation
+ * included. Pixels which no source pixel maps to are black, or transparent
+ * if the picture has an alpha component.
+ * <p>
+ * Each output row is computed by stepping through the source along a
+ * straight line in 32.32 fixed point, with no per-pixel trigonometry or
+ * division, and sampling the source bilinearly, with colours premultiplied
+ * by their alpha if the picture has one. The part of each row which
+ * falls outside the source is clipped analytically before the loop starts.
+ * Transformations which map pixels exactly onto pixels (rotations by
+ * multiples of 90 degrees and flips) copy pixels directly instead, tile by
+ * tile so that the source rows a rotation reads stay cached. Rows and tiles
+ * are spread over several cores.
+ */
+public class Transformer {
+
+  /** The number of fractional bits in the fixed point coordinates. */
+  private static final int SHIFT = 32;
+
+  /** One, in fixed point. */
+  private static final long ONE = 1L << SHIFT;
+
+  /** How close to an integer a matrix entry must be to be treated as one. */
+  private static final double EPSILON = 1e-9;
+
+  /**
+   * Hide default constructor (static methods only).
+   */
+  private Transformer() {
+  }
+
+  /**
+   * Transform a picture onto a picture just large enough to hold all of it.
+   * The transformation maps source coordinates to destination coordinates,
+   * where the pixel at (x,y) covers the square from (x,y) to (x+1,y+1) and
+   * y increases downwards, so a positive rotation turns the picture
+   * clockwise. The result is moved so that the transformed source touches
+   * its top and left edges, so the translation of the transformation has no
+   * effect.
+   *
+   * @param picture
+   *          the picture to transform, which is left unchanged
+   * @param transform
+   *          the transformation to apply
+   * @return a new picture holding the transformed source.
+   * @throws IllegalArgumentException
+   *           if the transformation is not invertible
+   */
+  public static Picture transform(Picture picture, AffineTransform transform) {
+    double[] bounds = bounds(transform, picture.getWidth(),
+        picture.getHeight());
+    AffineTransform placed = AffineTransform.getTranslateInstance(-bounds[0],
+        -bounds[1]);
+    placed.concatenate(transform);
+    return render(picture, placed, extent(bounds[2] - bounds[0]),
+        extent(bounds[3] - bounds[1]), true);
+  }
+
+  /**
+   * Transform a picture onto a canvas of a given size, whose top left
+   * corner is the origin of the destination coordinates, so that the
+   * translation of the transformation is kept. Parts of the transformed
+   * source outside the canvas are cut off.
+   *
+   * @param picture
+   *          the picture to transform, which is left unchanged
+   * @param transform
+   *          the transformation to apply, as for
+   *          {@link #transform(Picture, AffineTransform)}
+   * @param width
+   *          the width of the canvas
+   * @param height
+   *          the height of the canvas
+   * @return a new picture of the given size holding the transformed source.
+   * @throws IllegalArgumentException
+   *           if the transformation is not invertible or the size is not
+   *           positive
+   */
+  public static Picture transform(Picture picture, AffineTransform transform,
+      int width, int height) {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("invalid size " + width + "x" + height);
+    }
+    double[] bounds = bounds(transform, picture.getWidth(),
+        picture.getHeight());
+    boolean covered = Math.abs(bounds[0]) < EPSILON
+        && Math.abs(bounds[1]) < EPSILON
+        && Math.abs(bounds[2] - width) < EPSILON
+        && Math.abs(bounds[3] - height) < EPSILON;
+    return render(picture, transform, width, height, covered);
+  }
+
+  /**
+   * Render the transformed picture onto a new picture of the given size.
+   * Pixels may only be copied directly if the transformed source covers the
+   * whole of it.
+   */
+  private static Picture render(Picture picture, AffineTransform transform,
+      int width, int height, boolean covered) {
+    AffineTransform inverse;
+    try {
+      inverse = transform.createInverse();
+    } catch (NoninvertibleTransformException e) {
+      throw new IllegalArgumentException("transformation is not invertible");
+    }
+
+    Picture result = Utils.createPicture(width, height, picture.hasAlpha());
+    if (!covered || !copyPixels(picture, result, inverse)) {
+      sample(picture, result, inverse);
+    }
+    return result;
+  }
+
+  /**
+   * Return the bounding box (minX, minY, maxX, maxY) of the transformed
+   * source rectangle.
+   */
+  private static double[] bounds(AffineTransform transform, int width,
+      int height) {
+    double[] corners = {0, 0, width, 0, 0, height, width, height};
+    transform.transform(corners, 0, corners, 0, 4);
+    double[] bounds = {corners[0], corners[1], corners[0], corners[1]};
+    for (int i = 2; i < corners.length; i += 2) {
+      bounds[0] = Math.min(bounds[0], corners[i]);
+      bounds[1] = Math.min(bounds[1], corners[i + 1]);
+      bounds[2] = Math.max(bounds[2], corners[i]);
+      bounds[3] = Math.max(bounds[3], corners[i + 1]);
+    }
+    return bounds;
+  }
+
+  /**
+   * Return the number of whole pixels needed to cover a length, ignoring
+   * rounding errors.
+   */
+  private static int extent(double length) {
+    return Math.max(1, (int) Math.ceil(length - EPSILON));
+  }
+
+  /**
+   * Return true if the value is within rounding error of an integer.
+   */
+  private static boolean isInteger(double value) {
+    return Math.abs(value - Math.rint(value)) < EPSILON;
+  }
+
+  /**
+   * Copy pixels directly if the inverse transformation maps the centre of
+   * every destination pixel onto the centre of a source pixel.
+   *
+   * @return false, leaving the destination unchanged, if it does not.
+   */
+  private static boolean copyPixels(Picture picture, Picture result,
+      AffineTransform inverse) {
+    double[] m = new double[6];
+    inverse.getMatrix(m);
+    for (int i = 0; i < 4; i++) {
+      if (!isInteger(m[i]) || Math.abs(m[i]) > 1) {
+        return false;
+      }
+    }
+    Point2D origin = inverse.transform(new Point2D.Double(0.5, 0.5), null);
+    if (!isInteger(origin.getX() - 0.5) || !isInteger(origin.getY() - 0.5)) {
+      return false;
+    }
+
+    int srcWidth = picture.getWidth();
+    int width = result.getWidth();
+    // source index of destination (0,0), and its steps along x and y
+    int stepX = (int) Math.rint(m[0]) + (int) Math.rint(m[1]) * srcWidth;
+    int stepY = (int) Math.rint(m[2]) + (int) Math.rint(m[3]) * srcWidth;
+    int first = (int) Math.rint(origin.getX() - 0.5)
+        + (int) Math.rint(origin.getY() - 0.5) * srcWidth;
+    int[] src = picture.raster();
+    int[] dst = result.getPixels();
+    TileScheduler.forTiles(width, result.getHeight(), 0,
+        (tileX, tileY, tileWidth, tileHeight) -> {
+          for (int y = tileY; y < tileY + tileHeight; y++) {
+            int index = first + y * stepY + tileX * stepX;
+            int row = y * width;
+            for (int x = tileX; x < tileX + tileWidth; x++) {
+              dst[row + x] = src[index];
+              index += stepX;
+            }
+          }
+        });
+    return true;
+  }
+
+  /**
+   * Fill the destination by sampling the source bilinearly along each row.
+   */
+  private static void sample(Picture picture, Picture result,
+      AffineTransform inverse) {
+    int srcWidth = picture.getWidth();
+    int srcHeight = picture.getHeight();
+    int width = result.getWidth();
+    double[] m = new double[6];
+    inverse.getMatrix(m);
+    // source position (in pixel indices) per unit step in x
+    long stepX = Math.round(m[0] * ONE);
+    long stepY = Math.round(m[1] * ONE);
+    int[] src = picture.raster();
+    int[] dst = result.getPixels();
+    boolean alpha = picture.hasAlpha();
+
+    Parallel.forRows(width, result.getHeight(), (band, startRow, endRow) -> {
+      for (int y = startRow; y < endRow; y++) {
+        // source position of the centre of destination pixel (0,y), moved
+        // back by half a pixel so that integer positions are pixel centres
+        double u0 = m[2] * (y + 0.5) + m[4] + m[0] * 0.5 - 0.5;
+        double v0 = m[3] * (y + 0.5) + m[5] + m[1] * 0.5 - 0.5;
+
+        int start = 0;
+        int end = width;
+        int[] range = clip(u0, m[0], -0.5, srcWidth - 0.5, start, end);
+        start = range[0];
+        end = range[1];
+        range = clip(v0, m[1], -0.5, srcHeight - 0.5, start, end);
+        start = range[0];
+        end = range[1];
+
+        long u = Math.round(u0 * ONE) + start * stepX;
+        long v = Math.round(v0 * ONE) + start * stepY;
+        int row = y * width;
+        for (int x = start; x < end; x++) {
+          dst[row + x] = bilinear(src, srcWidth, srcHeight, u, v, alpha);
+          u += stepX;
+          v += stepY;
+        }
+      }
+    });
+  }
+
+  /**
+   * Narrow the range of x, from <tt>start</tt> (inclusive) to <tt>end</tt>
+   * (exclusive), to where <tt>low &lt;= origin + x * step &lt; high</tt>.
+   *
+   * @return the narrowed start and end.
+   */
+  private static int[] clip(double origin, double step, double low,
+      double high, int start, int end) {
+    if (Math.abs(step) < EPSILON) {
+      return origin >= low && origin < high
+          ? new int[] {start, end} : new int[] {start, start};
+    }
+    double first = (low - origin) / step;
+    double last = (high - origin) / step;
+    if (step < 0) {
+      double swap = first;
+      first = last;
+      last = swap;
+    }
+    int from = (int) Math.max(start, Math.ceil(first));
+    int to = (int) Math.min(end, Math.ceil(last));
+    return new int[] {from, Math.max(from, to)};
+  }
+
+  /**
+   * Sample the source at a fixed point position, where integer positions
+   * are the centres of pixels. Positions up to half a pixel outside the
+   * source take the colour of the nearest edge pixel. If <tt>alpha</tt> is
+   * set the colours are weighted by their alpha.
+   */
+  private static int bilinear(int[] src, int width, int height, long u,
+      long v, boolean alpha) {
+    int x0 = (int) (u >> SHIFT);
+    int y0 = (int) (v >> SHIFT);
+    int fx = (int) (u >> (SHIFT - 8)) & 0xff;
+    int fy = (int) (v >> (SHIFT - 8)) & 0xff;
+    if (x0 < 0) {
+      x0 = 0;
+      fx = 0;
+    } else if (x0 >= width - 1) {
+      x0 = width - 1;
+      fx = 0;
+    }
+    if (y0 < 0) {
+      y0 = 0;
+      fy = 0;
+    } else if (y0 >= height - 1) {
+      y0 = height - 1;
+      fy = 0;
+    }
+    int index = y0 * width + x0;
+    int right = fx == 0 ? 0 : 1;
+    int below = fy == 0 ? 0 : width;
+    int p00 = src[index];
+    int p01 = src[index + right];
+    int p10 = src[index + below];
+    int p11 = src[index + below + right];
+    if (alpha) {
+      p00 = PackedColor.premultiply(p00);
+      p01 = PackedColor.premultiply(p01);
+      p10 = PackedColor.premultiply(p10);
+      p11 = PackedColor.premultiply(p11);
+    }
+
+    // interpolate red and blue together, then alpha and green
+    int rb = lerp(p00, p01, p10, p11, fx, fy);
+    int ag = lerp(p00 >>> 8, p01 >>> 8, p10 >>> 8, p11 >>> 8, fx, fy);
+    int result = rb | (ag << 8);
+    return alpha ? PackedColor.unpremultiply(result) : result;
+  }
+
+  /**
+   * Interpolate bilinearly between the bits 0-7 and 16-23 of four packed
+   * values, with 8-bit fractions.
+   */
+  private static int lerp(int p00, int p01, int p10, int p11, int fx,
+      int fy) {
+    int top = lerp(p00 & 0xff00ff, p01 & 0xff00ff, fx);
+    int bottom = lerp(p10 & 0xff00ff, p11 & 0xff00ff, fx);
+    return lerp(top, bottom, fy);
+  }
+
+  /**
+   * Interpolate between two pairs of 8-bit values, 16 bits apart, with an
+   * 8-bit fraction.
+   */
+  private static int lerp(int a, int b, int fraction) {
+    return ((a * (256 - fraction) + b * fraction + 0x800080) >>> 8) & 0xff00ff;
+  }
+}
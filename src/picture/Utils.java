@@ -1,7 +1,13 @@
 package picture;
 
-import java.awt.Graphics;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -14,6 +20,18 @@ import javax.imageio.ImageIO;
  */
 public class Utils {
 
+  /** The colour model of pictures with an alpha component. */
+  private static final ColorModel ARGB = ColorModel.getRGBdefault();
+
+  /** The colour model of pictures without an alpha component. */
+  private static final ColorModel RGB = new DirectColorModel(24, 0xff0000,
+      0xff00, 0xff);
+
+  private static final int[] ARGB_MASKS = {0xff0000, 0xff00, 0xff,
+      0xff000000};
+
+  private static final int[] RGB_MASKS = {0xff0000, 0xff00, 0xff};
+
   /**
    * Hide default constructor (static methods only).
    */
@@ -31,9 +49,67 @@ public class Utils {
    * @return a new instance of a Picture object of the specified size.
    */
   public static Picture createPicture(int width, int height) {
-    BufferedImage img = new BufferedImage(width, height,
-        BufferedImage.TYPE_INT_RGB);
-    return new Picture(img);
+    return createPicture(width, height, false);
+  }
+
+  /**
+   * Create a new instance of a Picture object of the specified width and
+   * height, optionally with an alpha (opacity) component. A new picture with
+   * an alpha component is fully transparent. The raster is taken from the
+   * <tt>RasterPool</tt> if it holds a large enough one.
+   * 
+   * @param width
+   *          width of new Picture
+   * @param height
+   *          height of new Picture
+   * @param alpha
+   *          whether the picture has an alpha component
+   * @return a new instance of a Picture object of the specified size.
+   */
+  public static Picture createPicture(int width, int height, boolean alpha) {
+    int size = width * height;
+    DataBufferInt buffer = new DataBufferInt(RasterPool.acquire(size), size);
+    // the same layout as TYPE_INT_ARGB and TYPE_INT_RGB
+    WritableRaster raster = Raster.createPackedRaster(buffer, width, height,
+        width, alpha ? ARGB_MASKS : RGB_MASKS, null);
+    return new Picture(new BufferedImage(alpha ? ARGB : RGB, raster, false,
+        null));
+  }
+
+  /**
+   * Create a new Picture object holding a copy of a rectangle of another
+   * picture. The source picture is not marked as modified.
+   * 
+   * @param source
+   *          the picture to copy from
+   * @param x
+   *          the x-coordinate of the rectangle's top-left corner
+   * @param y
+   *          the y-coordinate of the rectangle's top-left corner
+   * @param width
+   *          the width of the rectangle
+   * @param height
+   *          the height of the rectangle
+   * @return a new Picture of the size of the rectangle, with an alpha
+   *         component if the source has one.
+   * @throws IllegalArgumentException
+   *           if the rectangle is empty or not within the source picture
+   */
+  public static Picture crop(Picture source, int x, int y, int width,
+      int height) {
+    if (width <= 0 || height <= 0 || x < 0 || y < 0
+        || x + width > source.getWidth() || y + height > source.getHeight()) {
+      throw new IllegalArgumentException("invalid rectangle " + width + "x"
+          + height + "+" + x + "+" + y);
+    }
+    Picture copy = createPicture(width, height, source.hasAlpha());
+    int[] src = source.raster();
+    int[] dst = copy.getPixels();
+    for (int j = 0; j < height; j++) {
+      System.arraycopy(src, (y + j) * source.getWidth() + x, dst, j * width,
+          width);
+    }
+    return copy;
   }
 
   /**
@@ -44,11 +120,11 @@ public class Utils {
    *          a String representing the location of the image to be loaded. This
    *          can either be a URL, or a filesystem location.
    * @return a Picture representing the image at the specified URL, or null if
-   *         loading failed for any reason.
+   *         loading failed for any reason. The picture has an alpha component
+   *         if the image has one.
    */
   public static Picture loadPicture(String locationString) {
 
-    final BufferedImage img;
     final BufferedImage origImage;
 
     URL locationURL = null;
@@ -79,13 +155,29 @@ public class Utils {
       return null;
     }
 
-    // If image loaded, then create a BufferedImage which is modifiable
+    return toPicture(origImage);
+  }
+
+  /**
+   * Copy a decoded image into a new Picture, which has an alpha component
+   * if the image has one.
+   *
+   * @param origImage
+   *          the decoded image
+   * @return a new Picture holding the pixels of the image.
+   */
+  static Picture toPicture(BufferedImage origImage) {
+    // create a BufferedImage which is modifiable
     int imageWidth = origImage.getWidth(null);
     int imageHeight = origImage.getHeight(null);
-    img = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
-    Graphics g = img.createGraphics();
+    boolean alpha = origImage.getColorModel().hasAlpha();
+    Picture picture = createPicture(imageWidth, imageHeight, alpha);
+    Graphics2D g = picture.getImage().createGraphics();
+    // copy the alpha component as it is rather than blending with the blank
+    g.setComposite(AlphaComposite.Src);
     g.drawImage(origImage, 0, 0, null);
-    return new Picture(img);
+    g.dispose();
+    return picture;
   }
 
   /**
@@ -126,7 +218,7 @@ public class Utils {
    */
   public static boolean savePicture(Picture picture, String destination) {
     try {
-      return ImageIO.write(picture.getImage(), "png", new File(destination));
+      return ImageIO.write(picture.image(), "png", new File(destination));
     } catch (IOException e) {
       return false;
     }
@@ -0,0 +1,683 @@
+package testsuite;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import picture.Color;
+import picture.Picture;
+import picture.Resampler;
+import picture.Utils;
+
+/**
+ * Straightforward, slow implementations of the <tt>Process</tt> operations,
+ * written pixel by pixel through <tt>getPixel</tt> and <tt>setPixel</tt>
+ * directly from their specifications. The optimised operations must give
+ * exactly the same results.
+ */
+public class ReferenceProcess {
+
+  public static Picture invert(Picture picture) {
+    Picture result = blank(picture.getWidth(), picture.getHeight());
+    for (int x = 0; x < picture.getWidth(); x++) {
+      for (int y = 0; y < picture.getHeight(); y++) {
+        Color c = picture.getPixel(x, y);
+        result.setPixel(x, y, new Color(255 - c.getRed(), 255 - c.getGreen(),
+            255 - c.getBlue()));
+      }
+    }
+    return result;
+  }
+
+  public static Picture grayscale(Picture picture) {
+    Picture result = blank(picture.getWidth(), picture.getHeight());
+    for (int x = 0; x < picture.getWidth(); x++) {
+      for (int y = 0; y < picture.getHeight(); y++) {
+        Color c = picture.getPixel(x, y);
+        int avg = (c.getRed() + c.getGreen() + c.getBlue()) / 3;
+        result.setPixel(x, y, new Color(avg, avg, avg));
+      }
+    }
+    return result;
+  }
+
+  public static Picture brightness(Picture picture, int delta) {
+    Picture result = blank(picture.getWidth(), picture.getHeight());
+    for (int x = 0; x < picture.getWidth(); x++) {
+      for (int y = 0; y < picture.getHeight(); y++) {
+        Color c = picture.getPixel(x, y);
+        result.setPixel(x, y, new Color(clamp(c.getRed() + delta),
+            clamp(c.getGreen() + delta), clamp(c.getBlue() + delta)));
+      }
+    }
+    return result;
+  }
+
+  public static Picture contrast(Picture picture, double factor) {
+    Picture result = blank(picture.getWidth(), picture.getHeight());
+    for (int x = 0; x < picture.getWidth(); x++) {
+      for (int y = 0; y < picture.getHeight(); y++) {
+        Color c = picture.getPixel(x, y);
+        result.setPixel(x, y, new Color(contrast(c.getRed(), factor),
+            contrast(c.getGreen(), factor), contrast(c.getBlue(), factor)));
+      }
+    }
+    return result;
+  }
+
+  private static int contrast(int value, double factor) {
+    return clamp((int) Math.round((value - 128) * factor + 128));
+  }
+
+  public static Picture gamma(Picture picture, double gamma) {
+    Picture result = blank(picture.getWidth(), picture.getHeight());
+    for (int x = 0; x < picture.getWidth(); x++) {
+      for (int y = 0; y < picture.getHeight(); y++) {
+        Color c = picture.getPixel(x, y);
+        result.setPixel(x, y, new Color(gamma(c.getRed(), gamma),
+            gamma(c.getGreen(), gamma), gamma(c.getBlue(), gamma)));
+      }
+    }
+    return result;
+  }
+
+  private static int gamma(int value, double gamma) {
+    return clamp((int) Math.round(255 * Math.pow(value / 255.0, gamma)));
+  }
+
+  /**
+   * Stretch each colour component linearly so that its lowest value in the
+   * picture becomes 0 and its highest 255.
+   */
+  public static Picture levels(Picture picture) {
+    int[][] counts = counts(picture);
+    int[][] tables = new int[3][256];
+    for (int c = 0; c < 3; c++) {
+      int low = 0;
+      while (low < 255 && counts[c][low] == 0) {
+        low++;
+      }
+      int high = 255;
+      while (high > 0 && counts[c][high] == 0) {
+        high--;
+      }
+      for (int v = 0; v < 256; v++) {
+        tables[c][v] = high <= low ? v : clamp((int) Math.floor(
+            (v - low) * 255.0 / (high - low) + 0.5));
+      }
+    }
+    return lookup(picture, tables);
+  }
+
+  /**
+   * Map each colour component through its cumulative distribution, so that
+   * the lowest value present becomes 0 and the highest 255.
+   */
+  public static Picture equalize(Picture picture) {
+    int[][] counts = counts(picture);
+    long total = (long) picture.getWidth() * picture.getHeight();
+    int[][] tables = new int[3][256];
+    for (int c = 0; c < 3; c++) {
+      int low = 0;
+      while (low < 255 && counts[c][low] == 0) {
+        low++;
+      }
+      long lowest = counts[c][low];
+      long cumulative = 0;
+      for (int v = 0; v < 256; v++) {
+        cumulative += counts[c][v];
+        if (total == lowest) {
+          tables[c][v] = v;
+        } else {
+          tables[c][v] = clamp((int) Math.floor((cumulative - lowest) * 255.0
+              / (total - lowest) + 0.5));
+        }
+      }
+    }
+    return lookup(picture, tables);
+  }
+
+  private static int[][] counts(Picture picture) {
+    int[][] counts = new int[3][256];
+    for (int x = 0; x < picture.getWidth(); x++) {
+      for (int y = 0; y < picture.getHeight(); y++) {
+        Color c = picture.getPixel(x, y);
+        counts[0][c.getRed()]++;
+        counts[1][c.getGreen()]++;
+        counts[2][c.getBlue()]++;
+      }
+    }
+    return counts;
+  }
+
+  private static Picture lookup(Picture picture, int[][] tables) {
+    Picture result = blank(picture.getWidth(), picture.getHeight());
+    for (int x = 0; x < picture.getWidth(); x++) {
+      for (int y = 0; y < picture.getHeight(); y++) {
+        Color c = picture.getPixel(x, y);
+        result.setPixel(x, y, new Color(tables[0][c.getRed()],
+            tables[1][c.getGreen()], tables[2][c.getBlue()]));
+      }
+    }
+    return result;
+  }
+
+  public static Picture threshold(Picture picture, int level) {
+    Picture result = blank(picture.getWidth(), picture.getHeight());
+    for (int x = 0; x < picture.getWidth(); x++) {
+      for (int y = 0; y < picture.getHeight(); y++) {
+        Color c = picture.getPixel(x, y);
+        int luminance = (int) Math.floor(
+            (77 * c.getRed() + 150 * c.getGreen() + 29 * c.getBlue()) / 256.0
+            + 0.5);
+        int v = luminance > level ? 255 : 0;
+        result.setPixel(x, y, new Color(v, v, v));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Rotate clockwise by a multiple of 90 degrees.
+   */
+  public static Picture rotate(Picture picture, int quarters) {
+    int w = picture.getWidth();
+    int h = picture.getHeight();
+    Picture result = quarters % 2 == 0 ? blank(w, h) : blank(h, w);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        Color c = picture.getPixel(x, y);
+        switch (quarters % 4) {
+          case 0: result.setPixel(x, y, c); break;
+          case 1: result.setPixel(h - 1 - y, x, c); break;
+          case 2: result.setPixel(w - 1 - x, h - 1 - y, c); break;
+          default: result.setPixel(y, w - 1 - x, c);
+        }
+      }
+    }
+    return result;
+  }
+
+  public static Picture flip(Picture picture, boolean horizontal) {
+    int w = picture.getWidth();
+    int h = picture.getHeight();
+    Picture result = blank(w, h);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        if (horizontal) {
+          result.setPixel(w - 1 - x, y, picture.getPixel(x, y));
+        } else {
+          result.setPixel(x, h - 1 - y, picture.getPixel(x, y));
+        }
+      }
+    }
+    return result;
+  }
+
+  public static Picture blur(Picture picture) {
+    int w = picture.getWidth();
+    int h = picture.getHeight();
+    Picture result = blank(w, h);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        if (x == 0 || y == 0 || x == w - 1 || y == h - 1) {
+          result.setPixel(x, y, picture.getPixel(x, y));
+          continue;
+        }
+        int r = 0, g = 0, b = 0;
+        for (int i = x - 1; i <= x + 1; i++) {
+          for (int j = y - 1; j <= y + 1; j++) {
+            Color c = picture.getPixel(i, j);
+            r += c.getRed();
+            g += c.getGreen();
+            b += c.getBlue();
+          }
+        }
+        result.setPixel(x, y, new Color(r / 9, g / 9, b / 9));
+      }
+    }
+    return result;
+  }
+
+  public static Picture blend(Picture... pictures) {
+    int w = Integer.MAX_VALUE;
+    int h = Integer.MAX_VALUE;
+    for (Picture p : pictures) {
+      w = Math.min(w, p.getWidth());
+      h = Math.min(h, p.getHeight());
+    }
+    Picture result = blank(w, h);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        int r = 0, g = 0, b = 0;
+        for (Picture p : pictures) {
+          Color c = p.getPixel(x, y);
+          r += c.getRed();
+          g += c.getGreen();
+          b += c.getBlue();
+        }
+        int n = pictures.length;
+        result.setPixel(x, y, new Color(r / n, g / n, b / n));
+      }
+    }
+    return result;
+  }
+
+  public static Picture mosaic(int tileSize, Picture... pictures) {
+    int w = Integer.MAX_VALUE;
+    int h = Integer.MAX_VALUE;
+    for (Picture p : pictures) {
+      w = Math.min(w, p.getWidth());
+      h = Math.min(h, p.getHeight());
+    }
+    w -= w % tileSize;
+    h -= h % tileSize;
+    Picture result = blank(w, h);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        Picture source = pictures[(x / tileSize + y / tileSize)
+            % pictures.length];
+        result.setPixel(x, y, source.getPixel(x, y));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resize by picking the source pixel under the centre of each output pixel.
+   */
+  public static Picture resizeNearest(Picture picture, int w, int h) {
+    Picture result = blank(w, h);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        int sx = (int) Math.floor((x + 0.5) * picture.getWidth() / w);
+        int sy = (int) Math.floor((y + 0.5) * picture.getHeight() / h);
+        result.setPixel(x, y, picture.getPixel(sx, sy));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resize with a reconstruction filter as <tt>Resampler</tt> specifies:
+   * when shrinking by a factor of four or more, first average blocks of
+   * half the factor, then filter the rest of the way.
+   */
+  public static Picture resize(Picture picture, int w, int h,
+      Resampler.Filter filter) {
+    int factorX = picture.getWidth() / w / 2;
+    int factorY = picture.getHeight() / h / 2;
+    if (factorX >= 2 || factorY >= 2) {
+      picture = reduce(picture, Math.max(1, factorX), Math.max(1, factorY));
+    }
+    return filter(picture, w, h, filter);
+  }
+
+  /**
+   * Average blocks of pixels, rounding to nearest; the partial blocks along
+   * the right and bottom edges are averaged over the pixels present.
+   */
+  public static Picture reduce(Picture picture, int factorX, int factorY) {
+    int w = (picture.getWidth() + factorX - 1) / factorX;
+    int h = (picture.getHeight() + factorY - 1) / factorY;
+    Picture result = blank(w, h);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        int[] sums = new int[3];
+        int n = 0;
+        for (int i = x * factorX; i < Math.min((x + 1) * factorX,
+            picture.getWidth()); i++) {
+          for (int j = y * factorY; j < Math.min((y + 1) * factorY,
+              picture.getHeight()); j++) {
+            Color c = picture.getPixel(i, j);
+            sums[0] += c.getRed();
+            sums[1] += c.getGreen();
+            sums[2] += c.getBlue();
+            n++;
+          }
+        }
+        result.setPixel(x, y, new Color((sums[0] + n / 2) / n,
+            (sums[1] + n / 2) / n, (sums[2] + n / 2) / n));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resize with a reconstruction filter, first horizontally then vertically,
+   * rounding and clamping after each pass. Every output pixel is computed
+   * directly from all the source pixels under the filter, widened by the
+   * reduction factor when shrinking, without any block averaging first.
+   */
+  public static Picture filter(Picture picture, int w, int h,
+      Resampler.Filter filter) {
+    int srcWidth = picture.getWidth();
+    int srcHeight = picture.getHeight();
+    int[][] planes = new int[3][srcWidth * srcHeight];
+    for (int x = 0; x < srcWidth; x++) {
+      for (int y = 0; y < srcHeight; y++) {
+        Color c = picture.getPixel(x, y);
+        planes[0][y * srcWidth + x] = c.getRed();
+        planes[1][y * srcWidth + x] = c.getGreen();
+        planes[2][y * srcWidth + x] = c.getBlue();
+      }
+    }
+    for (int c = 0; c < 3; c++) {
+      if (w != srcWidth) {
+        planes[c] = resample(planes[c], srcWidth, srcHeight, w, 1, srcWidth,
+            filter);
+      }
+      if (h != srcHeight) {
+        planes[c] = resample(planes[c], srcHeight, w, h, w, 1, filter);
+      }
+    }
+    Picture result = blank(w, h);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        int i = y * w + x;
+        result.setPixel(x, y, new Color(planes[0][i], planes[1][i],
+            planes[2][i]));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resample a plane along one axis, from <tt>srcSize</tt> to <tt>size</tt>
+   * pixels, for each of <tt>lines</tt> lines. Pixels are <tt>step</tt>
+   * apart along the axis and lines <tt>lineStep</tt> apart.
+   */
+  private static int[] resample(int[] plane, int srcSize, int lines,
+      int size, int step, int lineStep, Resampler.Filter filter) {
+    int across = step == 1 ? size : lines;
+    int[] result = new int[size * lines];
+    double scale = (double) srcSize / size;
+    double widen = Math.max(1, scale);
+    for (int o = 0; o < size; o++) {
+      double centre = (o + 0.5) * scale;
+      // every source pixel outside this range has a weight of 0
+      double reach = 3 * widen;
+      int first = Math.max(0, (int) Math.floor(centre - reach));
+      int last = Math.min(srcSize, (int) Math.ceil(centre + reach));
+      double[] weights = new double[last - first];
+      double total = 0;
+      for (int i = first; i < last; i++) {
+        weights[i - first] = kernel(filter, (i + 0.5 - centre) / widen);
+        total += weights[i - first];
+      }
+      for (int line = 0; line < lines; line++) {
+        double sum = 0;
+        for (int i = first; i < last; i++) {
+          sum += weights[i - first] * plane[line * lineStep + i * step];
+        }
+        int index = step == 1 ? line * across + o : o * across + line;
+        result[index] = clamp((int) Math.floor(sum / total + 0.5));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The weight of a filter at a distance from its centre, in source pixels.
+   */
+  private static double kernel(Resampler.Filter filter, double x) {
+    double d = Math.abs(x);
+    switch (filter) {
+      case BILINEAR:
+        return d < 1 ? 1 - d : 0;
+      case BICUBIC:
+        // Keys' cubic convolution with a = -0.5
+        if (d < 1) {
+          return 1.5 * d * d * d - 2.5 * d * d + 1;
+        }
+        return d < 2 ? -0.5 * d * d * d + 2.5 * d * d - 4 * d + 2 : 0;
+      case LANCZOS3:
+        if (d == 0) {
+          return 1;
+        }
+        return d < 3 ? Math.sin(Math.PI * d) / (Math.PI * d)
+            * Math.sin(Math.PI * d / 3) / (Math.PI * d / 3) : 0;
+      default:
+        throw new IllegalArgumentException("no reference for " + filter);
+    }
+  }
+
+  /**
+   * Draw a translucent picture over an opaque one, mixing each colour
+   * component in proportion to the overlay's alpha.
+   */
+  public static Picture overlay(Picture base, Picture overlay, int x0,
+      int y0) {
+    Picture result = blank(base.getWidth(), base.getHeight());
+    for (int x = 0; x < base.getWidth(); x++) {
+      for (int y = 0; y < base.getHeight(); y++) {
+        Color under = base.getPixel(x, y);
+        int ox = x - x0;
+        int oy = y - y0;
+        if (ox < 0 || oy < 0 || ox >= overlay.getWidth()
+            || oy >= overlay.getHeight()) {
+          result.setPixel(x, y, under);
+          continue;
+        }
+        Color over = overlay.getPixel(ox, oy);
+        double a = over.getAlpha() / 255.0;
+        result.setPixel(x, y, new Color(
+            (int) Math.round(over.getRed() * a + under.getRed() * (1 - a)),
+            (int) Math.round(over.getGreen() * a
+                + under.getGreen() * (1 - a)),
+            (int) Math.round(over.getBlue() * a + under.getBlue() * (1 - a))));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Fill the pixels connected to the seed through pixels sharing an edge
+   * which have exactly the seed's colour, searching breadth first.
+   */
+  public static Picture floodFill(Picture picture, int seedX, int seedY,
+      Color color) {
+    int w = picture.getWidth();
+    int h = picture.getHeight();
+    Picture result = blank(w, h);
+    int[] rgb = new int[w * h];
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        Color c = picture.getPixel(x, y);
+        result.setPixel(x, y, c);
+        rgb[y * w + x] = (c.getRed() << 16) | (c.getGreen() << 8)
+            | c.getBlue();
+      }
+    }
+    int target = rgb[seedY * w + seedX];
+    boolean[] seen = new boolean[w * h];
+    ArrayDeque<Integer> queue = new ArrayDeque<>();
+    queue.add(seedY * w + seedX);
+    seen[seedY * w + seedX] = true;
+    int[][] steps = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+    while (!queue.isEmpty()) {
+      int i = queue.remove();
+      int x = i % w;
+      int y = i / w;
+      result.setPixel(x, y, color);
+      for (int[] step : steps) {
+        int nx = x + step[0];
+        int ny = y + step[1];
+        if (nx >= 0 && ny >= 0 && nx < w && ny < h && !seen[ny * w + nx]
+            && rgb[ny * w + nx] == target) {
+          seen[ny * w + nx] = true;
+          queue.add(ny * w + nx);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Transform onto a picture just large enough to hold the transformed
+   * source.
+   */
+  public static Picture transform(Picture picture,
+      AffineTransform transform) {
+    double[] corners = {0, 0, picture.getWidth(), 0, 0, picture.getHeight(),
+        picture.getWidth(), picture.getHeight()};
+    transform.transform(corners, 0, corners, 0, 4);
+    double minX = Math.min(Math.min(corners[0], corners[2]),
+        Math.min(corners[4], corners[6]));
+    double minY = Math.min(Math.min(corners[1], corners[3]),
+        Math.min(corners[5], corners[7]));
+    double maxX = Math.max(Math.max(corners[0], corners[2]),
+        Math.max(corners[4], corners[6]));
+    double maxY = Math.max(Math.max(corners[1], corners[3]),
+        Math.max(corners[5], corners[7]));
+    AffineTransform placed = AffineTransform.getTranslateInstance(-minX,
+        -minY);
+    placed.concatenate(transform);
+    return transform(picture, placed,
+        Math.max(1, (int) Math.ceil(maxX - minX - 1e-9)),
+        Math.max(1, (int) Math.ceil(maxY - minY - 1e-9)));
+  }
+
+  /**
+   * Transform onto a canvas of the given size, sampling the source
+   * bilinearly where the centre of each canvas pixel comes from. Positions
+   * up to half a pixel outside the source take the colour of the nearest
+   * edge pixel; pixels from further out are black.
+   */
+  public static Picture transform(Picture picture, AffineTransform transform,
+      int w, int h) {
+    AffineTransform inverse;
+    try {
+      inverse = transform.createInverse();
+    } catch (NoninvertibleTransformException e) {
+      throw new IllegalArgumentException(e);
+    }
+    int srcWidth = picture.getWidth();
+    int srcHeight = picture.getHeight();
+    Picture result = blank(w, h);
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        Point2D source = inverse.transform(new Point2D.Double(x + 0.5,
+            y + 0.5), null);
+        double u = source.getX() - 0.5;
+        double v = source.getY() - 0.5;
+        if (u < -0.5 || u >= srcWidth - 0.5 || v < -0.5
+            || v >= srcHeight - 0.5) {
+          continue;
+        }
+        int x0 = Math.max(0, Math.min(srcWidth - 1, (int) Math.floor(u)));
+        int y0 = Math.max(0, Math.min(srcHeight - 1, (int) Math.floor(v)));
+        double fx = Math.max(0, Math.min(1, u - x0));
+        double fy = Math.max(0, Math.min(1, v - y0));
+        Color c00 = picture.getPixel(x0, y0);
+        Color c01 = picture.getPixel(Math.min(srcWidth - 1, x0 + 1), y0);
+        Color c10 = picture.getPixel(x0, Math.min(srcHeight - 1, y0 + 1));
+        Color c11 = picture.getPixel(Math.min(srcWidth - 1, x0 + 1),
+            Math.min(srcHeight - 1, y0 + 1));
+        result.setPixel(x, y, new Color(
+            lerp(c00.getRed(), c01.getRed(), c10.getRed(), c11.getRed(),
+                fx, fy),
+            lerp(c00.getGreen(), c01.getGreen(), c10.getGreen(),
+                c11.getGreen(), fx, fy),
+            lerp(c00.getBlue(), c01.getBlue(), c10.getBlue(), c11.getBlue(),
+                fx, fy)));
+      }
+    }
+    return result;
+  }
+
+  private static int lerp(int v00, int v01, int v10, int v11, double fx,
+      double fy) {
+    double top = v00 + (v01 - v00) * fx;
+    double bottom = v10 + (v11 - v10) * fx;
+    return (int) Math.round(top + (bottom - top) * fy);
+  }
+
+  /**
+   * Pick the value of the given rank, for each colour component, from the
+   * sorted values of the window around each pixel, repeating edge pixels.
+   */
+  public static Picture rank(Picture picture, int radius, int rank) {
+    int w = picture.getWidth();
+    int h = picture.getHeight();
+    int side = 2 * radius + 1;
+    Picture result = blank(w, h);
+    int[][] values = new int[3][side * side];
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        int n = 0;
+        for (int i = x - radius; i <= x + radius; i++) {
+          for (int j = y - radius; j <= y + radius; j++) {
+            Color c = picture.getPixel(Math.max(0, Math.min(w - 1, i)),
+                Math.max(0, Math.min(h - 1, j)));
+            values[0][n] = c.getRed();
+            values[1][n] = c.getGreen();
+            values[2][n] = c.getBlue();
+            n++;
+          }
+        }
+        for (int[] component : values) {
+          Arrays.sort(component);
+        }
+        result.setPixel(x, y, new Color(values[0][rank], values[1][rank],
+            values[2][rank]));
+      }
+    }
+    return result;
+  }
+
+  private static Picture blank(int width, int height) {
+    return Utils.createPicture(width, height);
+  }
+
+  private static int clamp(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+
+  /**
+   * Count the connected components of the pixels with a luminance of at
+   * least 128 by searching breadth first from each unvisited one.
+   */
+  public static int countComponents(Picture picture, boolean eightConnected) {
+    int w = picture.getWidth();
+    int h = picture.getHeight();
+    boolean[][] seen = new boolean[w][h];
+    int count = 0;
+    for (int x = 0; x < w; x++) {
+      for (int y = 0; y < h; y++) {
+        if (seen[x][y] || !bright(picture, x, y)) {
+          continue;
+        }
+        count++;
+        ArrayDeque<int[]> queue = new ArrayDeque<>();
+        queue.add(new int[] {x, y});
+        seen[x][y] = true;
+        while (!queue.isEmpty()) {
+          int[] p = queue.poll();
+          for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+              int nx = p[0] + dx;
+              int ny = p[1] + dy;
+              if ((dx != 0 && dy != 0 && !eightConnected)
+                  || nx < 0 || ny < 0 || nx >= w || ny >= h || seen[nx][ny]
+                  || !bright(picture, nx, ny)) {
+                continue;
+              }
+              seen[nx][ny] = true;
+              queue.add(new int[] {nx, ny});
+            }
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  private static boolean bright(Picture picture, int x, int y) {
+    Color c = picture.getPixel(x, y);
+    return (77 * c.getRed() + 150 * c.getGreen() + 29 * c.getBlue() + 128)
+        >> 8 >= 128;
+  }
+}
@@ -0,0 +1,393 @@
+package testsuite;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static testsuite.TestSuiteHelper.withParallelism;
+
+import java.awt.geom.AffineTransform;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import picture.Color;
+import picture.Picture;
+import picture.PictureDiff;
+import picture.PlanarPicture;
+import picture.PlanarProcess;
+import picture.PointChain;
+import picture.Process;
+import picture.RasterPool;
+import picture.Resampler;
+import picture.Utils;
+
+/**
+ * Checks every operation on large synthetic pictures, in memory, against the
+ * slow implementations in <tt>ReferenceProcess</tt>. Each operation is run
+ * both on a single thread and in parallel, and both results must match the
+ * reference exactly.
+ * <p>
+ * The throughput of each parallel run is printed and, if the
+ * <tt>picture.perf.report</tt> system property names a file, appended to it.
+ * It is the best of <tt>picture.perf.runs</tt> (default 3) timed runs after
+ * an untimed warm-up, so a single slow run (a garbage collection or a busy
+ * neighbour) does not count. A test fails if its throughput falls below a
+ * floor, in megapixels per second. The floors are set well below what an ordinary machine achieves
+ * so that only real regressions fail; <tt>picture.perf.scale</tt> scales
+ * them (0 disables the check). The picture size is set by
+ * <tt>picture.regression.size</tt> (default 2048x1536).
+ */
+public class RegressionSuite {
+
+  private static final String[] SIZE = System.getProperty(
+      "picture.regression.size", "2048x1536").split("x");
+
+  private static final int WIDTH = Integer.parseInt(SIZE[0]);
+
+  private static final int HEIGHT = Integer.parseInt(SIZE[1]);
+
+  private static final double FLOOR_SCALE = Double.parseDouble(
+      System.getProperty("picture.perf.scale", "1"));
+
+  private static final int RUNS = Math.max(1,
+      Integer.getInteger("picture.perf.runs", 3));
+
+  private static Picture source;
+
+  private static Picture other;
+
+  private static synchronized Picture source() {
+    if (source == null) {
+      source = SyntheticImages.generate(WIDTH, HEIGHT, 1);
+      other = SyntheticImages.generate(WIDTH, HEIGHT, 2);
+    }
+    return source;
+  }
+
+  @Test
+  public void invert() {
+    check("invert", 20, ReferenceProcess.invert(source()), Process::invert);
+  }
+
+  @Test
+  public void grayscale() {
+    check("grayscale", 20, ReferenceProcess.grayscale(source()),
+        Process::grayscale);
+  }
+
+  @Test
+  public void brightness() {
+    check("brightness", 20, ReferenceProcess.brightness(source(), 40),
+        p -> p.brightness(40));
+  }
+
+  @Test
+  public void contrast() {
+    check("contrast", 20, ReferenceProcess.contrast(source(), 1.4),
+        p -> p.contrast(1.4));
+  }
+
+  @Test
+  public void gamma() {
+    check("gamma", 20, ReferenceProcess.gamma(source(), 0.7),
+        p -> p.gamma(0.7));
+  }
+
+  @Test
+  public void autoLevels() {
+    // the source spans every intensity, so narrow it first
+    check("autoLevels", 10, ReferenceProcess.levels(
+        ReferenceProcess.contrast(source(), 0.4)), p -> {
+          p.contrast(0.4);
+          p.autoLevels();
+        });
+  }
+
+  @Test
+  public void equalize() {
+    check("equalize", 10, ReferenceProcess.equalize(source()),
+        Process::equalize);
+  }
+
+  @Test
+  public void threshold() {
+    check("threshold", 20, ReferenceProcess.threshold(source(), 100),
+        p -> p.threshold(100));
+  }
+
+  @Test
+  public void rotate90() {
+    check("rotate90", 10, ReferenceProcess.rotate(source(), 1),
+        Process::rotate90);
+  }
+
+  @Test
+  public void rotate180() {
+    check("rotate180", 10, ReferenceProcess.rotate(source(), 2),
+        Process::rotate180);
+  }
+
+  @Test
+  public void rotate270() {
+    check("rotate270", 10, ReferenceProcess.rotate(source(), 3),
+        Process::rotate270);
+  }
+
+  @Test
+  public void flipHorizontal() {
+    check("flipH", 10, ReferenceProcess.flip(source(), true),
+        Process::flipHorizontal);
+  }
+
+  @Test
+  public void flipVertical() {
+    check("flipV", 10, ReferenceProcess.flip(source(), false),
+        Process::flipVertical);
+  }
+
+  @Test
+  public void blur() {
+    check("blur", 2, ReferenceProcess.blur(source()), Process::blur);
+  }
+
+  @Test
+  public void median() {
+    check("median", 1, ReferenceProcess.rank(source(), 2, 12),
+        p -> p.median(2));
+  }
+
+  @Test
+  public void erode() {
+    check("erode", 1, ReferenceProcess.rank(source(), 1, 0), p -> p.erode(1));
+  }
+
+  @Test
+  public void dilate() {
+    check("dilate", 1, ReferenceProcess.rank(source(), 1, 8),
+        p -> p.dilate(1));
+  }
+
+  @Test
+  public void transform() {
+    AffineTransform rotation = AffineTransform.getRotateInstance(
+        Math.toRadians(23));
+    check("transform", 5, 2, ReferenceProcess.transform(source(), rotation),
+        p -> p.transform(rotation));
+  }
+
+  @Test
+  public void overlay() {
+    Picture overlay = translucent();
+    int x = WIDTH / 3;
+    int y = -HEIGHT / 5;
+    check("overlay", 10, 1, ReferenceProcess.overlay(source(), overlay, x, y),
+        p -> p.overlay(overlay, x, y));
+  }
+
+  @Test
+  public void floodFill() {
+    Color red = new Color(255, 0, 0);
+    int x = WIDTH / 2;
+    int y = HEIGHT / 2;
+    check("floodFill", 5, ReferenceProcess.floodFill(
+        ReferenceProcess.threshold(source(), 100), x, y, red), p -> {
+          p.threshold(100);
+          p.floodFill(x, y, red);
+        });
+  }
+
+  /**
+   * Return a picture half the size of the source whose alpha varies from
+   * pixel to pixel, built from the other synthetic picture.
+   */
+  private static synchronized Picture translucent() {
+    source();
+    Picture overlay = Utils.createPicture(WIDTH / 2, HEIGHT / 2, true);
+    for (int x = 0; x < overlay.getWidth(); x++) {
+      for (int y = 0; y < overlay.getHeight(); y++) {
+        Color c = other.getPixel(x, y);
+        overlay.setPixel(x, y, new Color(c.getRed(), c.getGreen(),
+            c.getBlue(), (x + 3 * y) % 256));
+      }
+    }
+    return overlay;
+  }
+
+  @Test
+  public void blend() {
+    source();
+    check("blend", 2, ReferenceProcess.blend(source, other),
+        p -> p.blend(new Picture[] {source, other}));
+  }
+
+  @Test
+  public void mosaic() {
+    source();
+    check("mosaic", 2, ReferenceProcess.mosaic(64, source, other),
+        p -> p.mosaic(64, new Picture[] {source, other}));
+  }
+
+  @Test
+  public void resizeNearest() {
+    int w = WIDTH * 2 / 3;
+    int h = HEIGHT * 3 / 4;
+    check("resizeNearest", 10, ReferenceProcess.resizeNearest(source(), w, h),
+        p -> p.resize(w, h, Resampler.Filter.NEAREST));
+  }
+
+  @Test
+  public void resizeBilinearUp() {
+    resize("resizeBilinearUp", Resampler.Filter.BILINEAR, 5, 4);
+  }
+
+  @Test
+  public void resizeBicubicUp() {
+    resize("resizeBicubicUp", Resampler.Filter.BICUBIC, 5, 4);
+  }
+
+  @Test
+  public void resizeLanczos3Up() {
+    resize("resizeLanczos3Up", Resampler.Filter.LANCZOS3, 5, 4);
+  }
+
+  @Test
+  public void resizeBilinearDown() {
+    resize("resizeBilinearDown", Resampler.Filter.BILINEAR, 1, 10);
+  }
+
+  @Test
+  public void resizeBicubicDown() {
+    resize("resizeBicubicDown", Resampler.Filter.BICUBIC, 1, 10);
+  }
+
+  @Test
+  public void resizeLanczos3Down() {
+    resize("resizeLanczos3Down", Resampler.Filter.LANCZOS3, 1, 10);
+  }
+
+  /**
+   * Check a filtered resize by a factor of <tt>numerator / denominator</tt>
+   * against the reference, which only differs by the rounding of the fixed
+   * point weights in each pass. Shrinking by a factor of four or more
+   * averages blocks first, so the result is also compared with filtering
+   * the whole way, which it must approximate closely.
+   */
+  private void resize(String name, Resampler.Filter filter, int numerator,
+      int denominator) {
+    int w = WIDTH * numerator / denominator;
+    int h = HEIGHT * numerator / denominator;
+    check(name, 2, 2, ReferenceProcess.resize(source(), w, h, filter),
+        p -> p.resize(w, h, filter));
+    if (denominator >= 4 * numerator) {
+      Process process = new Process(SyntheticImages.copy(source()));
+      process.resize(w, h, filter);
+      PictureDiff diff = PictureDiff.compare(
+          ReferenceProcess.filter(source(), w, h, filter),
+          process.getPicture());
+      assertTrue(name + " (unreduced): " + diff, diff.getPsnr() >= 30);
+    }
+  }
+
+  @Test
+  public void planarMatchesPacked() {
+    Picture expected = ReferenceProcess.invert(ReferenceProcess.grayscale(
+        ReferenceProcess.blur(source())));
+    PlanarProcess planar = new PlanarProcess(PlanarPicture.fromPicture(
+        source()));
+    planar.blur();
+    planar.grayscale();
+    planar.invert();
+    assertIdentical("planar", expected, planar.getPicture().toPicture());
+  }
+
+  @Test
+  public void pointChainMatchesSteps() {
+    Picture expected = ReferenceProcess.threshold(ReferenceProcess.brightness(
+        ReferenceProcess.invert(source()), -30), 90);
+    check("pointChain", 20, expected, p -> p.apply(new PointChain().invert()
+        .brightness(-30).luminance().threshold(90)));
+  }
+
+  /**
+   * Run an operation sequentially and in parallel on copies of the source,
+   * check both results against the reference and check the throughput of
+   * the parallel run.
+   */
+  private void check(String name, double floor, Picture expected,
+      Consumer<Process> operation) {
+    check(name, floor, 0, expected, operation);
+  }
+
+  /**
+   * As <tt>check</tt>, but allowing each colour component to differ from the
+   * reference by up to a tolerance. The sequential and parallel results
+   * must still match each other exactly.
+   */
+  private void check(String name, double floor, int tolerance,
+      Picture expected, Consumer<Process> operation) {
+    Picture sequential = withParallelism(1, () -> run(operation));
+    // the first parallel run warms up, the best of the others is timed
+    Picture parallel = run(operation);
+    long nanos = Long.MAX_VALUE;
+    for (int i = 0; i < RUNS; i++) {
+      Process process = new Process(Utils.crop(source(), 0, 0, WIDTH,
+          HEIGHT));
+      long start = System.nanoTime();
+      operation.accept(process);
+      nanos = Math.min(nanos, System.nanoTime() - start);
+      RasterPool.release(process.getPicture());
+    }
+    assertWithin(name + " (parallel)", expected, parallel, tolerance);
+    assertWithin(name + " (sequential)", expected, sequential, tolerance);
+    assertIdentical(name + " (sequential against parallel)", sequential,
+        parallel);
+
+    double throughput = (double) WIDTH * HEIGHT / (nanos / 1e3);
+    report(String.format(Locale.ROOT, "%s %dx%d %.1f Mpixel/s", name, WIDTH,
+        HEIGHT, throughput));
+    assertTrue(name + " ran at " + throughput + " Mpixel/s, below "
+        + floor * FLOOR_SCALE, throughput >= floor * FLOOR_SCALE);
+  }
+
+  private static Picture run(Consumer<Process> operation) {
+    Process process = new Process(SyntheticImages.copy(source()));
+    operation.accept(process);
+    return process.getPicture();
+  }
+
+  private static void assertIdentical(String name, Picture expected,
+      Picture actual) {
+    assertEquals(name + " width", expected.getWidth(), actual.getWidth());
+    assertEquals(name + " height", expected.getHeight(), actual.getHeight());
+    PictureDiff diff = PictureDiff.compare(expected, actual);
+    assertEquals(name + ": " + diff, 0, diff.getDifferentPixels());
+  }
+
+  private static void assertWithin(String name, Picture expected,
+      Picture actual, int tolerance) {
+    if (tolerance == 0) {
+      assertIdentical(name, expected, actual);
+      return;
+    }
+    assertEquals(name + " width", expected.getWidth(), actual.getWidth());
+    assertEquals(name + " height", expected.getHeight(), actual.getHeight());
+    PictureDiff diff = PictureDiff.compare(expected, actual);
+    assertTrue(name + ": " + diff, diff.within(tolerance));
+  }
+
+  private static synchronized void report(String line) {
+    System.out.println(line);
+    String location = System.getProperty("picture.perf.report");
+    if (location == null) {
+      return;
+    }
+    try (Writer out = new FileWriter(location, true)) {
+      out.write(line + System.lineSeparator());
+    } catch (IOException e) {
+      System.err.println("could not write report: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package testsuite;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import picture.Picture;
+import picture.Process;
+import picture.Resampler;
+import picture.Utils;
+
+/**
+ * Compares the throughput of <tt>Resampler</tt> against Java2D
+ * <tt>drawImage</tt> scaling with the equivalent interpolation hint.
+ * Run with: <tt>java testsuite.ResizeBenchmark [size] [target] [runs]</tt>.
+ */
+public class ResizeBenchmark {
+
+  public static void main(String[] args) {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+    int target = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    Picture source = Utils.createPicture(size, size);
+    Random random = new Random(42);
+    for (int x = 0; x < size; x++) {
+      for (int y = 0; y < size; y++) {
+        source.setPixel(x, y, new picture.Color(random.nextInt(256),
+            (x * 255) / size, (y * 255) / size));
+      }
+    }
+    BufferedImage image = new BufferedImage(size, size,
+        BufferedImage.TYPE_INT_RGB);
+    for (int x = 0; x < size; x++) {
+      for (int y = 0; y < size; y++) {
+        picture.Color c = source.getPixel(x, y);
+        image.setRGB(x, y, (c.getRed() << 16) | (c.getGreen() << 8)
+            | c.getBlue());
+      }
+    }
+
+    System.out.println(size + "x" + size + " -> " + target + "x" + target);
+    for (Resampler.Filter filter : Resampler.Filter.values()) {
+      double best = Double.MAX_VALUE;
+      for (int i = 0; i < runs; i++) {
+        long start = System.nanoTime();
+        new Process(source).resize(target, target, filter);
+        best = Math.min(best, (System.nanoTime() - start) / 1e6);
+      }
+      System.out.printf("Resampler %-9s %8.1f ms%n", filter, best);
+    }
+
+    Object[] hints = {
+        RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR,
+        RenderingHints.VALUE_INTERPOLATION_BILINEAR,
+        RenderingHints.VALUE_INTERPOLATION_BICUBIC };
+    String[] names = { "NEAREST", "BILINEAR", "BICUBIC" };
+    for (int h = 0; h < hints.length; h++) {
+      double best = Double.MAX_VALUE;
+      for (int i = 0; i < runs; i++) {
+        long start = System.nanoTime();
+        BufferedImage scaled = new BufferedImage(target, target,
+            BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, hints[h]);
+        g.drawImage(image, 0, 0, target, target, null);
+        g.dispose();
+        best = Math.min(best, (System.nanoTime() - start) / 1e6);
+      }
+      System.out.printf("Java2D    %-9s %8.1f ms%n", names[h], best);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package testsuite;
+
+import java.util.Random;
+
+import picture.Color;
+import picture.Picture;
+import picture.Utils;
+
+/**
+ * Generates deterministic test pictures of any size in memory: smooth
+ * gradients for the filters, hard edges for the geometric operations and
+ * noise so that every pixel differs from its neighbours.
+ */
+public class SyntheticImages {
+
+  /**
+   * Generate a picture. The same arguments always give the same picture.
+   *
+   * @param width
+   *          width of the picture
+   * @param height
+   *          height of the picture
+   * @param seed
+   *          the seed of the noise
+   * @return the generated picture.
+   */
+  public static Picture generate(int width, int height, long seed) {
+    Picture picture = Utils.createPicture(width, height);
+    Random random = new Random(seed);
+    int cell = Math.max(1, Math.min(width, height) / 8);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int noise = random.nextInt(64);
+        boolean checker = ((x / cell) + (y / cell)) % 2 == 0;
+        int red = (int) ((long) x * 255 / Math.max(1, width - 1));
+        int green = (int) ((long) y * 255 / Math.max(1, height - 1));
+        int blue = checker ? 192 + noise : noise;
+        picture.setPixel(x, y, new Color(red, green, blue));
+      }
+    }
+    return picture;
+  }
+
+  /**
+   * Return a copy of a picture.
+   *
+   * @param picture
+   *          the picture to copy
+   * @return a new picture with the same size and pixel-values.
+   */
+  public static Picture copy(Picture picture) {
+    Picture copy = Utils.createPicture(picture.getWidth(), picture.getHeight(),
+        picture.hasAlpha());
+    for (int y = 0; y < picture.getHeight(); y++) {
+      for (int x = 0; x < picture.getWidth(); x++) {
+        copy.setPixel(x, y, picture.getPixel(x, y));
+      }
+    }
+    return copy;
+  }
+}
@@ -1,14 +1,66 @@
 package testsuite;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 import static testsuite.TestSuiteHelper.runMain;
+import static testsuite.TestSuiteHelper.withParallelism;
 
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.IntStream;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.sun.net.httpserver.HttpServer;
+
+import picture.AsyncPictureIO;
+import picture.Color;
+import picture.Components;
+import picture.Main;
+import picture.Metrics;
+import picture.PackedColor;
+import picture.Picture;
+import picture.PictureDiff;
+import picture.PictureIOException;
+import picture.PlanarPicture;
+import picture.PlanarProcess;
+import picture.PointChain;
+import picture.Process;
+import picture.Pyramid;
+import picture.RasterPool;
+import picture.Region;
+import picture.RenderGraph;
+import picture.Resampler;
+import picture.ResultCache;
+import picture.TileScheduler;
 import picture.Utils;
 
 public class TestSuite {
@@ -128,4 +180,1036 @@ public class TestSuite {
                     "images/sunset64x32.png"));
   }
 
+  @Test
+  public void levelsWhite() throws IOException {
+    assertEquals(Utils.loadPicture("images/white64x64.png"),
+            runMain(tmpFolder, "levels", "images/white64x64.png"));
+  }
+
+  @Test
+  public void equalizeBlack() throws IOException {
+    assertEquals(Utils.loadPicture("images/black64x64.png"),
+            runMain(tmpFolder, "equalize", "images/black64x64.png"));
+  }
+
+  @Test
+  public void levelsStretchesLowContrast() throws IOException {
+    String gradient = saveLowContrastGradient();
+    int[] expected = {0, 0, 0, 0, 0, 0, 26, 51, 77, 255};
+    Picture result = runMain(tmpFolder, "levels", gradient);
+    for (int x = 0; x < expected.length; x++) {
+      Color pixel = result.getPixel(x, 0);
+      assertEquals(expected[x], pixel.getRed());
+      assertEquals(expected[x], pixel.getGreen());
+      assertEquals(expected[x], pixel.getBlue());
+    }
+  }
+
+  @Test
+  public void equalizeSpreadsLowContrast() throws IOException {
+    String gradient = saveLowContrastGradient();
+    int[] expected = {0, 0, 0, 0, 0, 0, 64, 128, 191, 255};
+    Picture result = runMain(tmpFolder, "equalize", gradient);
+    for (int x = 0; x < expected.length; x++) {
+      Color pixel = result.getPixel(x, 0);
+      assertEquals(expected[x], pixel.getRed());
+      assertEquals(expected[x], pixel.getGreen());
+      assertEquals(expected[x], pixel.getBlue());
+    }
+  }
+
+  @Test
+  public void statsPrintsChannelSummary() throws IOException {
+    String gradient = saveLowContrastGradient();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream stdout = System.out;
+    try {
+      System.setOut(new PrintStream(out, true, "UTF-8"));
+      Main.main(new String[] {"stats", gradient});
+    } finally {
+      System.setOut(stdout);
+    }
+    String[] lines = out.toString("UTF-8").split("\\R");
+    assertEquals(7, lines.length);
+    assertEquals("size 10x1", lines[0]);
+    assertEquals("channel min max mean stddev median", lines[1]);
+    assertEquals("red 100 110 101.60 2.97 100", lines[2]);
+    assertEquals("green 100 110 101.60 2.97 100", lines[3]);
+    assertEquals("blue 100 110 101.60 2.97 100", lines[4]);
+    assertEquals("luminance 100 110 101.60 2.97 100", lines[5]);
+    assertEquals("otsu 103", lines[6]);
+  }
+
+  /**
+   * Save a 10x1 grey picture whose intensities only span 100 to 110, with
+   * most pixels at 100, and return its location.
+   */
+  private String saveLowContrastGradient() throws IOException {
+    int[] levels = {100, 100, 100, 100, 100, 100, 101, 102, 103, 110};
+    Picture picture = Utils.createPicture(levels.length, 1);
+    for (int x = 0; x < levels.length; x++) {
+      picture.setPixel(x, 0, new Color(levels[x], levels[x], levels[x]));
+    }
+    String location = tmpFolder.newFile("gradient.png").getPath();
+    Utils.savePicture(picture, location);
+    return location;
+  }
+
+  /**
+   * Return a 2x1 picture with an alpha component whose left pixel is opaque
+   * white and whose right pixel is transparent black.
+   */
+  private static Picture alphaEdge() {
+    Picture picture = Utils.createPicture(2, 1, true);
+    picture.setPixel(0, 0, new Color(255, 255, 255, 255));
+    picture.setPixel(1, 0, new Color(0, 0, 0, 0));
+    return picture;
+  }
+
+  @Test
+  public void bilinearResizeKeepsColourAtAlphaEdge() {
+    Picture result = Resampler.resize(alphaEdge(), 4, 1,
+        Resampler.Filter.BILINEAR);
+    int[] alphas = {255, 191, 64, 0};
+    for (int x = 0; x < 3; x++) {
+      Color pixel = result.getPixel(x, 0);
+      assertEquals(alphas[x], pixel.getAlpha());
+      assertEquals(255, pixel.getRed());
+      assertEquals(255, pixel.getGreen());
+      assertEquals(255, pixel.getBlue());
+    }
+    assertEquals(0, result.getPixel(3, 0).getAlpha());
+  }
+
+  @Test
+  public void reduceKeepsColourAtAlphaEdge() {
+    Color pixel = Resampler.reduce(alphaEdge(), 2, 1).getPixel(0, 0);
+    assertEquals(128, pixel.getAlpha());
+    assertEquals(255, pixel.getRed());
+    assertEquals(255, pixel.getGreen());
+    assertEquals(255, pixel.getBlue());
+  }
+
+  @Test
+  public void blurKeepsColourNextToTransparentPixel() {
+    Picture picture = Utils.createPicture(3, 3, true);
+    for (int y = 0; y < 3; y++) {
+      for (int x = 0; x < 3; x++) {
+        picture.setPixel(x, y, x == 0 && y == 0 ? new Color(0, 0, 0, 0)
+            : new Color(255, 255, 255, 255));
+      }
+    }
+    Process process = new Process(picture);
+    process.blur();
+    Color pixel = process.getPicture().getPixel(1, 1);
+    assertEquals(8 * 255 / 9, pixel.getAlpha());
+    assertEquals(255, pixel.getRed());
+    assertEquals(255, pixel.getGreen());
+    assertEquals(255, pixel.getBlue());
+  }
+
+  @Test
+  public void blendKeepsColourOverTransparentPixel() {
+    Picture white = Utils.createPicture(1, 1, true);
+    white.setPixel(0, 0, new Color(255, 255, 255, 255));
+    Picture transparent = Utils.createPicture(1, 1, true);
+    transparent.setPixel(0, 0, new Color(0, 0, 0, 0));
+    Process process = new Process(white);
+    process.blend(new Picture[] {white, transparent});
+    Color pixel = process.getPicture().getPixel(0, 0);
+    assertEquals(127, pixel.getAlpha());
+    assertEquals(255, pixel.getRed());
+    assertEquals(255, pixel.getGreen());
+    assertEquals(255, pixel.getBlue());
+  }
+
+  @Test
+  public void transparentPictureSurvivesLoadAndSave() throws IOException {
+    Picture picture = Utils.createPicture(16, 16, true);
+    for (int y = 0; y < 16; y++) {
+      for (int x = 0; x < 16; x++) {
+        picture.setPixel(x, y, x < 8 ? new Color(255, 255, 255, 255)
+            : new Color(0, 0, 0, 0));
+      }
+    }
+    String location = tmpFolder.newFile("transparent.png").getPath();
+    Utils.savePicture(picture, location);
+    Picture resaved = runMain(tmpFolder, "resize", "32", "16", "bilinear",
+        location);
+    for (int x = 0; x < 32; x++) {
+      Color pixel = resaved.getPixel(x, 8);
+      if (x < 15) {
+        assertEquals(255, pixel.getAlpha());
+      } else if (x > 16) {
+        assertEquals(0, pixel.getAlpha());
+      }
+      if (pixel.getAlpha() != 0) {
+        assertEquals(255, pixel.getRed());
+        assertEquals(255, pixel.getGreen());
+        assertEquals(255, pixel.getBlue());
+      }
+    }
+    assertTrue(resaved.getPixel(15, 8).getAlpha() < 255);
+    assertTrue(resaved.getPixel(16, 8).getAlpha() > 0);
+  }
+
+  @Test
+  public void thresholdBWPatterns() throws IOException {
+    assertEquals(Utils.loadPicture("images/bwpatterns64x64.png"),
+            runMain(tmpFolder, "threshold", "images/bwpatterns64x64.png"));
+  }
+
+  @Test
+  public void gradeInvertGrayscaleRainbow() throws IOException {
+    assertEquals(Utils.loadPicture("images/rainbowGS64x64doc.png"),
+            runMain(tmpFolder, "grade", "invert,gamma=1,invert,grayscale",
+                "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void gradeMatchesStepByStep() throws IOException {
+    Picture sunset = Utils.loadPicture("images/sunset64x32.png");
+    Picture[] expected = {
+        ReferenceProcess.brightness(sunset, 45),
+        ReferenceProcess.contrast(sunset, 1.7),
+        ReferenceProcess.gamma(sunset, 0.45),
+        ReferenceProcess.grayscale(ReferenceProcess.gamma(
+            ReferenceProcess.contrast(
+                ReferenceProcess.brightness(sunset, -20), 1.3), 2.2))};
+    String[] chains = {"brightness=45", "contrast=1.7", "gamma=0.45",
+        "brightness=-20,contrast=1.3,gamma=2.2,grayscale"};
+    for (int i = 0; i < chains.length; i++) {
+      String output = tmpFolder.newFile("grade" + i + ".png").getPath();
+      Main.main(new String[] {"grade", chains[i], "images/sunset64x32.png",
+          output});
+      assertEquals(chains[i], expected[i], Utils.loadPicture(output));
+    }
+  }
+
+  @Test
+  public void gradeUnknownOperationSavesNothing() throws IOException {
+    PrintStream stderr = System.err;
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    Picture result;
+    try {
+      System.setErr(new PrintStream(err, true, "UTF-8"));
+      result = runMain(tmpFolder, "grade", "invert,sharpen=2",
+          "images/sunset64x32.png");
+    } finally {
+      System.setErr(stderr);
+    }
+    assertTrue(result == null);
+    assertTrue(err.toString("UTF-8").contains("unknown operation sharpen"));
+  }
+
+  @Test
+  public void resizeBlack() throws IOException {
+    assertEquals(Utils.createPicture(32, 16),
+            runMain(tmpFolder, "resize", "32", "16", "lanczos3",
+                "images/black64x64.png"));
+  }
+
+  @Test
+  public void resizeRainbowSameSize() throws IOException {
+    assertEquals(Utils.loadPicture("images/rainbow64x64doc.png"),
+            runMain(tmpFolder, "resize", "64", "64",
+                "images/rainbow64x64doc.png"));
+  }
+
+  @Test
+  public void rotate360Sunset() throws IOException {
+    assertEquals(Utils.loadPicture("images/sunset64x32.png"),
+            runMain(tmpFolder, "rotate", "360", "images/sunset64x32.png"));
+  }
+
+  @Test
+  public void rotate45Black() throws IOException {
+    assertEquals(Utils.createPicture(91, 91),
+            runMain(tmpFolder, "rotate", "45", "images/black64x64.png"));
+  }
+
+  @Test
+  public void rotateArbitraryAngleMatchesReference() throws IOException {
+    Picture sunset = Utils.loadPicture("images/sunset64x32.png");
+    Picture expected = ReferenceProcess.transform(sunset,
+        AffineTransform.getRotateInstance(Math.toRadians(37)));
+    PictureDiff diff = PictureDiff.compare(expected,
+        runMain(tmpFolder, "rotate", "37", "images/sunset64x32.png"));
+    assertTrue(diff.toString(), diff.within(2));
+    assertTrue(diff.toString(), diff.getPsnr() > 45);
+  }
+
+  @Test
+  public void transformKeepsTranslationOnCanvas() throws IOException {
+    Picture sunset = Utils.loadPicture("images/sunset64x32.png");
+    Picture moved = runMain(tmpFolder, "transform", "1", "0", "0", "1", "10",
+        "5", "64", "32", "images/sunset64x32.png");
+    assertEquals(64, moved.getWidth());
+    assertEquals(32, moved.getHeight());
+    for (int x = 0; x < 64; x++) {
+      for (int y = 0; y < 32; y++) {
+        int expected = x < 10 || y < 5 ? 0
+            : sunset.getPixel(x - 10, y - 5).getRed();
+        assertEquals(expected, moved.getPixel(x, y).getRed());
+      }
+    }
+
+    AffineTransform sheared = new AffineTransform(0.8, 0.3, -0.4, 1.1, 12.3,
+        -3.17);
+    Process process = new Process(sunset);
+    process.transform(sheared, 70, 50);
+    PictureDiff diff = PictureDiff.compare(
+        ReferenceProcess.transform(sunset, sheared, 70, 50),
+        process.getPicture());
+    assertTrue(diff.toString(), diff.within(2));
+  }
+
+  @Test
+  public void transformRejectsTranslationWithoutSize() throws IOException {
+    PrintStream stderr = System.err;
+    Picture result;
+    try {
+      System.setErr(new PrintStream(new ByteArrayOutputStream(), true,
+          "UTF-8"));
+      result = runMain(tmpFolder, "transform", "1", "0", "0", "1", "10", "5",
+          "images/sunset64x32.png");
+    } finally {
+      System.setErr(stderr);
+    }
+    assertTrue(result == null);
+  }
+
+  @Test
+  public void stageEventsCarryMeasurements() throws IOException {
+    Picture picture = Utils.loadPicture("images/sunset64x32.png");
+    long rasterBytes = 4L * 64 * 32;
+    Path file = tmpFolder.newFolder("jfr").toPath().resolve("stages.jfr");
+    long live;
+    try (Recording recording = new Recording()) {
+      recording.enable("picture.Stage");
+      recording.start();
+      live = RasterPool.getLiveBytes();
+      Metrics.Stage stage = Metrics.start("process", "blur");
+      Process process = new Process(picture);
+      for (int i = 0; i < 4; i++) {
+        process.blur();
+      }
+      stage.end(process.getPicture());
+      recording.stop();
+      recording.dump(file);
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+    assertEquals(1, events.size());
+    RecordedEvent event = events.get(0);
+    assertEquals("blur", event.getString("operation"));
+    assertEquals(64 * 32, event.getLong("pixels"));
+    assertTrue(event.getLong("nanos") > 0);
+    assertTrue(event.getLong("allocatedBytes") > 0);
+    // two rasters alternate, however many blurs there are
+    long peak = event.getLong("peakRasterBytes") - live;
+    assertTrue(peak + " bytes", peak >= 2 * rasterBytes
+        && peak <= 3 * rasterBytes);
+    assertEquals(4, event.getLong("poolHits") + event.getLong("poolMisses"));
+    assertTrue(event.getLong("poolHits") >= 2);
+  }
+
+  @Test
+  public void overlappingStagesKeepTheirOwnPeaks() throws IOException {
+    Picture picture = Utils.createPicture(256, 256);
+    long rasterBytes = 4L * 256 * 256;
+    Path file = tmpFolder.newFolder("jfr").toPath().resolve("stages.jfr");
+    long live;
+    try (Recording recording = new Recording()) {
+      recording.enable("picture.Stage");
+      recording.start();
+      live = RasterPool.getLiveBytes();
+      Metrics.Stage outer = Metrics.start("process", "outer");
+      Process process = new Process(picture);
+      process.blur();
+      RasterPool.release(process.getPicture());
+      // starting a stage must not discard the outer stage's peak
+      Metrics.Stage inner = Metrics.start("process", "inner");
+      inner.end(picture);
+      outer.end(picture);
+      recording.stop();
+      recording.dump(file);
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+    assertEquals(2, events.size());
+    for (RecordedEvent event : events) {
+      long peak = event.getLong("peakRasterBytes") - live;
+      if (event.getString("operation").equals("outer")) {
+        assertTrue(peak + " bytes", peak >= rasterBytes);
+      } else {
+        assertTrue(peak + " bytes", peak < rasterBytes);
+      }
+    }
+  }
+
+  @Test
+  public void cachedResultMatchesRecomputed() throws IOException {
+    ResultCache cache = new ResultCache(tmpFolder.newFolder("cache").toPath(),
+        1 << 20);
+    String[] arguments = {"blur", "images/sunset64x32.png"};
+    boolean[] inputs = {false, true};
+    String key = cache.key(arguments, inputs);
+    File result = tmpFolder.newFile("result.png");
+    File copy = tmpFolder.newFile("copy.png");
+
+    assertFalse(cache.copyTo(key, copy.toPath()));
+    Utils.savePicture(runMain(tmpFolder, arguments), result.getPath());
+    cache.store(key, result.toPath());
+    assertTrue(cache.copyTo(key, copy.toPath()));
+    assertEquals(Utils.loadPicture("images/sunsetBlur64x32.png"),
+            Utils.loadPicture(copy.getPath()));
+  }
+
+  @Test
+  public void cacheDeletesAbandonedTemporaryFiles() throws IOException {
+    Path directory = tmpFolder.newFolder("cache").toPath();
+    ResultCache cache = new ResultCache(directory, 1 << 20);
+    Path abandoned = Files.write(directory.resolve("dead.tmp"), new byte[100]);
+    Files.setLastModifiedTime(abandoned, FileTime.fromMillis(
+        System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+    Path writing = Files.write(directory.resolve("live.tmp"), new byte[100]);
+
+    cache.store("entry", Paths.get("images/sunset64x32.png"));
+    assertFalse(Files.exists(abandoned));
+    assertTrue(Files.exists(writing));
+    assertTrue(Files.exists(directory.resolve("entry.png")));
+  }
+
+  @Test
+  public void hashCodeFollowsModification() throws IOException {
+    Picture picture = Utils.loadPicture("images/rainbow64x64doc.png");
+    int original = picture.hashCode();
+    assertEquals(original,
+        Utils.loadPicture("images/rainbow64x64doc.png").hashCode());
+
+    Color pixel = picture.getPixel(0, 0);
+    picture.setPixel(0, 0, new Color(255 - pixel.getRed(), 0, 0));
+    assertFalse(original == picture.hashCode());
+    picture.setPixel(0, 0, pixel);
+    assertEquals(original, picture.hashCode());
+  }
+
+  @Test
+  public void equalsIgnoresStaleHashAndUnusedTopByte() {
+    BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+    // keeps the image, so it can be written behind the picture's back
+    Picture picture = new Picture(image) {
+    };
+    Picture changed = Utils.createPicture(4, 4);
+    changed.setPixel(1, 1, new Color(1, 2, 3));
+    assertFalse(picture.hashCode() == changed.hashCode());
+    image.setRGB(1, 1, 0x010203);
+    assertEquals(changed, picture);
+
+    int[] raster = ((DataBufferInt) image.getRaster().getDataBuffer())
+        .getData();
+    raster[0] ^= 0x5a000000;
+    assertEquals(changed, picture);
+    raster[0] ^= 0x1;
+    assertFalse(changed.equals(picture));
+  }
+
+  @Test
+  public void diffBlurredSunset() throws IOException {
+    Picture sunset = Utils.loadPicture("images/sunset64x32.png");
+    Picture blurred = Utils.loadPicture("images/sunsetBlur64x32.png");
+    PictureDiff same = PictureDiff.compare(blurred,
+        runMain(tmpFolder, "blur", "images/sunset64x32.png"));
+    PictureDiff different = PictureDiff.compare(sunset, blurred);
+
+    assertEquals(0, same.getDifferentPixels());
+    assertTrue(Double.isInfinite(same.getPsnr()));
+    assertTrue(different.getDifferentPixels() > 0);
+    assertTrue(different.getPsnr() > 10);
+    assertFalse(different.within(different.getMaxDelta() - 1));
+    Locale locale = Locale.getDefault();
+    try {
+      Locale.setDefault(Locale.GERMANY);
+      assertTrue(different.toString().matches(".*PSNR \\d+\\.\\d\\d dB"));
+    } finally {
+      Locale.setDefault(locale);
+    }
+  }
+
+  @Test
+  public void overlayTranslucentRed() {
+    Picture base = Utils.createPicture(4, 4);
+    Picture overlay = Utils.createPicture(2, 2, true);
+    for (int x = 0; x < 2; x++) {
+      for (int y = 0; y < 2; y++) {
+        overlay.setPixel(x, y, new Color(255, 0, 0, 128));
+      }
+    }
+    Process process = new Process(base);
+    process.overlay(overlay, 3, -1);
+
+    assertEquals(128, process.getPicture().getPixel(3, 0).getRed());
+    assertEquals(255, process.getPicture().getPixel(3, 0).getAlpha());
+    assertEquals(0, process.getPicture().getPixel(2, 0).getRed());
+    assertEquals(0, process.getPicture().getPixel(3, 1).getRed());
+  }
+
+  @Test
+  public void overlayKeepsAlpha() {
+    Picture base = Utils.createPicture(1, 1, true);
+    base.setPixel(0, 0, new Color(0, 0, 255, 128));
+    Picture overlay = Utils.createPicture(1, 1, true);
+    overlay.setPixel(0, 0, new Color(255, 0, 0, 128));
+    Process process = new Process(base);
+    process.overlay(overlay, 0, 0);
+
+    // alpha 128 + 128 * 127 / 255, colours weighted 128 : 64 by coverage
+    Color pixel = process.getPicture().getPixel(0, 0);
+    assertEquals(192, pixel.getAlpha());
+    assertEquals(170, pixel.getRed());
+    assertEquals(0, pixel.getGreen());
+    assertEquals(85, pixel.getBlue());
+  }
+
+  @Test
+  public void invertRegionSunset() throws IOException {
+    Picture sunset = Utils.loadPicture("images/sunset64x32.png");
+    Picture result = runMain(tmpFolder, "--roi", "8,4,16,40", "invert",
+        "images/sunset64x32.png");
+
+    for (int x = 0; x < 64; x++) {
+      for (int y = 0; y < 32; y++) {
+        int red = sunset.getPixel(x, y).getRed();
+        boolean inside = x >= 8 && x < 24 && y >= 4;
+        assertEquals(inside ? 255 - red : red, result.getPixel(x, y).getRed());
+      }
+    }
+  }
+
+  @Test
+  public void blurMaskedRegionSunset() throws IOException {
+    Picture sunset = Utils.loadPicture("images/sunset64x32.png");
+    Picture blurred = Utils.loadPicture("images/sunsetBlur64x32.png");
+    Picture mask = Utils.createPicture(64, 32);
+    for (int x = 0; x < 64; x++) {
+      for (int y = 0; y < 32; y++) {
+        if ((x - 20) * (x - 20) + (y - 10) * (y - 10) < 150) {
+          mask.setPixel(x, y, new Color(255, 255, 255));
+        }
+      }
+    }
+    Region region = Region.fromMask(mask);
+    Process process = new Process(sunset);
+    process.setRegion(region);
+    process.blur();
+
+    Picture original = Utils.loadPicture("images/sunset64x32.png");
+    for (int x = 0; x < 64; x++) {
+      for (int y = 0; y < 32; y++) {
+        Picture expected = region.contains(x, y) ? blurred : original;
+        assertEquals(expected.getPixel(x, y).getGreen(),
+            process.getPicture().getPixel(x, y).getGreen());
+      }
+    }
+  }
+
+  @Test
+  public void renderGraphRerendersDirtyTiles() throws IOException {
+    Process resized = new Process(Utils.loadPicture("images/sunset64x32.png"));
+    resized.resize(640, 384, Resampler.Filter.BILINEAR);
+    Picture source = resized.getPicture();
+    RenderGraph graph = new RenderGraph(source);
+    graph.addStage(1, Process::blur);
+    RenderGraph.Stage brightness = graph.addStage(0, p -> p.brightness(10));
+    graph.render();
+    assertEquals(30, graph.getRenderedTiles());
+
+    source.setPixel(10, 10, new Color(255, 0, 255));
+    brightness.setOperation(p -> {
+      p.brightness(10);
+      p.setRegion(new Region(600, 0, 40, 10));
+      p.invert();
+    }, 600, 0, 40, 10);
+    Picture rendered = graph.render();
+    assertEquals(4 + 5, graph.getRenderedTiles());
+
+    Process expected = new Process(Utils.crop(source, 0, 0, 640, 384));
+    expected.blur();
+    expected.brightness(10);
+    expected.setRegion(new Region(600, 0, 40, 10));
+    expected.invert();
+    assertEquals(expected.getPicture(), rendered);
+  }
+
+  @Test
+  public void renderGraphRecomputesWholePictureOperations()
+      throws IOException {
+    Process resized = new Process(Utils.loadPicture("images/sunset64x32.png"));
+    resized.resize(640, 384, Resampler.Filter.BILINEAR);
+    Picture source = resized.getPicture();
+    RenderGraph graph = new RenderGraph(source);
+    graph.addStage(1, Process::blur);
+    graph.addStage(0, Process::equalize);
+    graph.addStage(0, Process::threshold);
+    graph.addStage(0, p -> p.brightness(-10));
+    for (int pass = 0; pass < 2; pass++) {
+      source.setPixel(10, 10, new Color(255, 0, 255));
+      Picture rendered = graph.render();
+      Process expected = new Process(Utils.crop(source, 0, 0, 640, 384));
+      expected.blur();
+      expected.equalize();
+      expected.threshold();
+      expected.brightness(-10);
+      assertEquals(expected.getPicture(), rendered);
+    }
+    // a change to one tile recomputes the whole of the last three stages
+    assertEquals(4 + 3 * 15, graph.getRenderedTiles());
+  }
+
+  @Test
+  public void tilesCanBeMarkedDirtyInParallel() {
+    Picture picture = Utils.createPicture(20 * Picture.TILE_SIZE,
+        20 * Picture.TILE_SIZE);
+    picture.clearDirty();
+    IntStream.range(0, 400).parallel().forEach(tile -> picture.markDirty(
+        tile % 20 * Picture.TILE_SIZE, tile / 20 * Picture.TILE_SIZE, 1, 1));
+    for (int row = 0; row < 20; row++) {
+      for (int column = 0; column < 20; column++) {
+        assertTrue(picture.isDirty(column, row));
+      }
+    }
+    picture.clearDirty();
+    assertFalse(picture.isDirty(0, 0));
+  }
+
+  @Test
+  public void savingLeavesTilesClean() throws Exception {
+    Picture picture = Utils.createPicture(2 * Picture.TILE_SIZE,
+        Picture.TILE_SIZE);
+    picture.clearDirty();
+    assertTrue(Utils.savePicture(picture,
+        tmpFolder.newFile("clean.png").getPath()));
+    AsyncPictureIO.save(picture, tmpFolder.newFile("async.png").toPath())
+        .get(10, TimeUnit.SECONDS);
+    assertFalse(picture.isDirty(0, 0));
+    assertFalse(picture.isDirty(1, 0));
+  }
+
+  @Test
+  public void chainedBlursReuseRasters() throws IOException {
+    Process process = new Process(Utils.loadPicture("images/sunset64x32.png"));
+    process.blur();
+    process.blur();
+    long hits = RasterPool.getHits();
+    process.blur();
+    process.blur();
+    assertTrue(RasterPool.getHits() >= hits + 2);
+
+    Process expected = new Process(
+        Utils.loadPicture("images/sunsetBlur64x32.png"));
+    expected.blur();
+    expected.blur();
+    expected.blur();
+    assertEquals(expected.getPicture(), process.getPicture());
+  }
+
+  @Test
+  public void heldPictureSurvivesLaterOperations() throws IOException {
+    Process process = new Process(Utils.loadPicture("images/sunset64x32.png"));
+    process.blur();
+    Picture held = process.getPicture();
+    Picture copy = Utils.crop(held, 0, 0, held.getWidth(), held.getHeight());
+    // each operation replaces the picture, and would release the old one
+    // to the pool if it had not been handed out
+    for (int i = 0; i < 4; i++) {
+      process.blur();
+      process.rotate90();
+    }
+    assertEquals(copy, held);
+    assertEquals(Utils.loadPicture("images/sunsetBlur64x32.png"), held);
+  }
+
+  @Test
+  public void medianBlack() throws IOException {
+    assertEquals(Utils.loadPicture("images/black64x64.png"),
+            runMain(tmpFolder, "median", "5", "images/black64x64.png"));
+  }
+
+  @Test
+  public void dilateThenErodeKeepsBlackRectangle() {
+    Picture picture = Utils.createPicture(40, 30);
+    for (int x = 0; x < 40; x++) {
+      for (int y = 0; y < 30; y++) {
+        boolean inside = x >= 10 && x < 30 && y >= 8 && y < 20;
+        int v = inside ? 0 : 255;
+        picture.setPixel(x, y, new Color(v, v, v));
+      }
+    }
+    Process process = new Process(picture);
+    process.erode(3);
+    process.dilate(3);
+    assertEquals(picture, process.getPicture());
+  }
+
+  @Test
+  public void smallTilesGiveSameResult() {
+    Picture source = SyntheticImages.generate(400, 300, 7);
+    Picture expected = withParallelism(1, () -> rotateAndBlur(source));
+    Picture actual;
+    try {
+      TileScheduler.setTileSize(16);
+      TileScheduler.resetStatistics();
+      actual = withParallelism(4, () -> rotateAndBlur(source));
+    } finally {
+      TileScheduler.setTileSize(0);
+    }
+    assertEquals(expected, actual);
+    // how many workers share the tiles depends on the size of the picture,
+    // but never exceeds the parallelism
+    assertTrue(TileScheduler.report().contains("worker 1: "));
+    assertTrue(TileScheduler.getUtilisation().length <= 4);
+    assertTrue(TileScheduler.getSteals() >= 1);
+  }
+
+  private static Picture rotateAndBlur(Picture picture) {
+    Process process = new Process(SyntheticImages.copy(picture));
+    process.rotate90();
+    process.blur();
+    return process.getPicture();
+  }
+
+  @Test
+  public void pyramidLevelsAreTiledReductions() throws IOException {
+    Picture picture = Utils.loadPicture("images/sunset64x32.png");
+    Picture[] corners = new Picture[Pyramid.levels(64, 32)];
+    int[] tiles = new int[corners.length];
+    Pyramid.build(picture, 16, (level, column, row, tile) -> {
+      synchronized (tiles) {
+        tiles[level]++;
+        if (column == 0 && row == 0) {
+          corners[level] = Utils.crop(tile, 0, 0, tile.getWidth(),
+              tile.getHeight());
+        }
+      }
+    });
+    assertEquals(7, corners.length);
+    assertEquals(8, tiles[0]);
+    assertEquals(2, tiles[1]);
+    assertEquals(1, tiles[6]);
+    assertEquals(Utils.crop(picture, 0, 0, 16, 16), corners[0]);
+    Picture half = Resampler.reduce(picture, 2, 2);
+    assertEquals(Utils.crop(Resampler.reduce(half, 2, 2), 0, 0, 16, 8),
+        corners[2]);
+    assertEquals(1, corners[6].getWidth());
+  }
+
+  @Test
+  public void pyramidCommandWritesTiles() throws IOException {
+    File directory = tmpFolder.newFolder("pyramid");
+    Main.main(new String[] {"pyramid", "32", "images/sunset64x32.png",
+        directory.getAbsolutePath()});
+    assertTrue(new File(directory, "0/1_0.png").isFile());
+    assertTrue(new File(directory, "6/0_0.png").isFile());
+    assertEquals(
+        Pyramid.level(Utils.loadPicture("images/sunset64x32.png"), 1),
+        Utils.loadPicture(new File(directory, "1/0_0.png").getPath()));
+  }
+
+  @Test
+  public void previewRunsOnCoarseLevel() throws IOException {
+    Picture picture = Utils.loadPicture("images/sunset64x32.png");
+    Picture preview = Pyramid.preview(picture, 1, Process::invert);
+    Process expected = new Process(Resampler.reduce(picture, 2, 2));
+    expected.invert();
+    assertEquals(expected.getPicture(), preview);
+  }
+
+  @Test
+  public void packedColorMatchesComponentArithmetic() {
+    Random random = new Random(42);
+    for (int n = 0; n < 100000; n++) {
+      int p = random.nextInt();
+      int q = random.nextInt();
+      int t = random.nextInt(257);
+      int sum = PackedColor.addSaturated(p, q);
+      int difference = PackedColor.subtractSaturated(p, q);
+      int lerp = PackedColor.lerp(p, q, t);
+      for (int shift = 0; shift < 32; shift += 8) {
+        int a = (p >>> shift) & 0xff;
+        int b = (q >>> shift) & 0xff;
+        assertEquals(Math.min(255, a + b), (sum >>> shift) & 0xff);
+        assertEquals(Math.max(0, a - b), (difference >>> shift) & 0xff);
+        assertEquals((a * (256 - t) + b * t) >> 8, (lerp >>> shift) & 0xff);
+        assertEquals(Math.round(a * (t & 0xff) / 255.0),
+            (PackedColor.multiply(p, t & 0xff) >>> shift) & 0xff);
+      }
+    }
+    for (int v = 0; v <= 255 * 257; v++) {
+      assertEquals(v / 255, PackedColor.div255(v));
+    }
+    assertEquals(0xff102030, PackedColor.pack(0x10, 0x20, 0x30));
+    assertEquals(255, PackedColor.luminance601(0xffffff));
+    assertEquals(255, PackedColor.luminance709(0xffffff));
+  }
+
+  @Test
+  public void asyncSaveAndLoadFile() throws Exception {
+    Picture picture = Utils.loadPicture("images/sunset64x32.png");
+    Path file = tmpFolder.newFolder("async").toPath().resolve("out.png");
+    AsyncPictureIO.save(picture, file).get(10, TimeUnit.SECONDS);
+    assertEquals(picture,
+        AsyncPictureIO.load(file.toString()).get(10, TimeUnit.SECONDS));
+    assertFailure(PictureIOException.NotFound.class,
+        AsyncPictureIO.load(file.resolveSibling("missing.png")));
+  }
+
+  @Test
+  public void asyncLoadBurstCompletes() throws Exception {
+    Picture sunset = Utils.loadPicture("images/sunset64x32.png");
+    // far more loads than the codec pool queues, so some run on the
+    // threads handing them over
+    List<CompletableFuture<Picture>> loads = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      loads.add(AsyncPictureIO.load(Paths.get("images/sunset64x32.png")));
+    }
+    for (CompletableFuture<Picture> load : loads) {
+      assertEquals(sunset, load.get(30, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void asyncLoadFetchesOverHttp() throws Exception {
+    byte[] png = Files.readAllBytes(Paths.get("images/sunset64x32.png"));
+    HttpServer server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", exchange -> {
+      String path = exchange.getRequestURI().getPath();
+      byte[] body = path.equals("/sunset.png") ? png : new byte[] {1, 2, 3};
+      int status = path.equals("/missing.png") ? 404
+          : path.equals("/busy.png") ? 503 : 200;
+      exchange.sendResponseHeaders(status, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    try {
+      InetSocketAddress address = server.getAddress();
+      String host = address.getAddress().getHostAddress();
+      if (host.contains(":")) {
+        host = "[" + host + "]";
+      }
+      String base = "http://" + host + ":" + address.getPort();
+      assertEquals(Utils.loadPicture("images/sunset64x32.png"),
+          AsyncPictureIO.load(base + "/sunset.png").get(10,
+              TimeUnit.SECONDS));
+      assertFailure(PictureIOException.NotFound.class,
+          AsyncPictureIO.load(base + "/missing.png"));
+      assertFailure(PictureIOException.Unreadable.class,
+          AsyncPictureIO.load(base + "/junk.png"));
+      PictureIOException.HttpStatus busy = assertFailure(
+          PictureIOException.HttpStatus.class,
+          AsyncPictureIO.load(base + "/busy.png"));
+      assertEquals(503, busy.getStatus());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  private static <T extends Throwable> T assertFailure(Class<T> type,
+      Future<?> future) throws InterruptedException, TimeoutException {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+      return type.cast(e.getCause());
+    }
+    throw new AssertionError("expected " + type.getSimpleName());
+  }
+
+  @Test
+  public void planarConversionRoundTrips() throws IOException {
+    Picture sunset = Utils.loadPicture("images/sunset64x32.png");
+    PlanarPicture planar = PlanarPicture.fromPicture(sunset);
+    assertEquals(64, planar.getWidth());
+    assertEquals(32, planar.getHeight());
+    assertEquals(sunset.getPixel(5, 7).getGreen(),
+        planar.getPlane(PlanarPicture.GREEN)[7 * 64 + 5]);
+    assertEquals(sunset, planar.toPicture());
+  }
+
+  @Test
+  public void planarBlurKeepsHighPlaneValues() {
+    PlanarPicture picture = new PlanarPicture(3, 3);
+    for (int c = 0; c < 3; c++) {
+      Arrays.fill(picture.getPlane(c), (short) 12000);
+    }
+    PlanarProcess process = new PlanarProcess(picture);
+    process.blur();
+    assertEquals(12000, process.getPicture().getPlane(0)[4]);
+  }
+
+  @Test
+  public void planarOperationsMatchProcess() throws IOException {
+    Picture source = SyntheticImages.generate(90, 70, 3);
+    Picture sunset = Utils.loadPicture("images/sunset64x32.png");
+    Picture rainbow = Utils.loadPicture("images/rainbow64x64doc.png");
+    PlanarPicture planarSunset = PlanarPicture.fromPicture(sunset);
+    PlanarPicture planarRainbow = PlanarPicture.fromPicture(rainbow);
+    PointChain chain = new PointChain().contrast(0.7).gamma(1.4).grayscale();
+    String[] names = {"invert", "grayscale", "brightness", "contrast",
+        "gamma", "threshold", "chain", "rotate90", "rotate180", "rotate270",
+        "flipHorizontal", "flipVertical", "blur", "blend", "mosaic"};
+    for (int op = 0; op < names.length; op++) {
+      Process process = new Process(SyntheticImages.copy(source));
+      PlanarProcess planar = new PlanarProcess(
+          PlanarPicture.fromPicture(source));
+      switch (names[op]) {
+        case "invert":
+          process.invert();
+          planar.invert();
+          break;
+        case "grayscale":
+          process.grayscale();
+          planar.grayscale();
+          break;
+        case "brightness":
+          process.brightness(-40);
+          planar.brightness(-40);
+          break;
+        case "contrast":
+          process.contrast(1.6);
+          planar.contrast(1.6);
+          break;
+        case "gamma":
+          process.gamma(0.6);
+          planar.gamma(0.6);
+          break;
+        case "threshold":
+          process.threshold(100);
+          planar.threshold(100);
+          break;
+        case "chain":
+          process.apply(chain);
+          planar.apply(chain);
+          break;
+        case "rotate90":
+          process.rotate90();
+          planar.rotate90();
+          break;
+        case "rotate180":
+          process.rotate180();
+          planar.rotate180();
+          break;
+        case "rotate270":
+          process.rotate270();
+          planar.rotate270();
+          break;
+        case "flipHorizontal":
+          process.flipHorizontal();
+          planar.flipHorizontal();
+          break;
+        case "flipVertical":
+          process.flipVertical();
+          planar.flipVertical();
+          break;
+        case "blur":
+          process.blur();
+          planar.blur();
+          break;
+        case "blend":
+          // differently sized pictures are cropped to the smallest
+          process.blend(new Picture[] {rainbow, sunset, source});
+          planar.blend(new PlanarPicture[] {planarRainbow, planarSunset,
+              PlanarPicture.fromPicture(source)});
+          break;
+        default:
+          process.mosaic(16, new Picture[] {source, rainbow, sunset});
+          planar.mosaic(16, new PlanarPicture[] {
+              PlanarPicture.fromPicture(source), planarRainbow,
+              planarSunset});
+          break;
+      }
+      assertEquals(names[op], process.getPicture(),
+          planar.getPicture().toPicture());
+    }
+  }
+
+  @Test
+  public void componentsCountsAreasAndBounds() {
+    Picture picture = Utils.createPicture(20, 10);
+    Color white = new Color(255, 255, 255);
+    for (int x = 2; x < 6; x++) {
+      for (int y = 1; y < 4; y++) {
+        picture.setPixel(x, y, white);
+      }
+    }
+    picture.setPixel(6, 4, white);
+    picture.setPixel(15, 8, white);
+    Components four = Components.label(picture, false);
+    assertEquals(3, four.getCount());
+    assertEquals(12, four.getArea(1));
+    assertEquals("4x3+2+1", four.getBounds(1).toString());
+    assertEquals(2, four.getLabel(6, 4));
+    assertEquals(0, four.getLabel(0, 0));
+    Components eight = Components.label(picture, true);
+    assertEquals(2, eight.getCount());
+    assertEquals(13, eight.getArea(1));
+    assertEquals("5x4+2+1", eight.getBounds(1).toString());
+  }
+
+  @Test
+  public void parallelComponentsMatchSequential() {
+    Picture noise = SyntheticImages.generate(512, 384, 11);
+    Components sequential = withParallelism(1,
+        () -> Components.label(noise, true));
+    Components parallel = withParallelism(5,
+        () -> Components.label(noise, true));
+    assertEquals(ReferenceProcess.countComponents(noise, true),
+        parallel.getCount());
+    assertTrue(Arrays.equals(sequential.getLabels(), parallel.getLabels()));
+    assertEquals(ReferenceProcess.countComponents(noise, false),
+        Components.label(noise, false).getCount());
+  }
+
+  @Test
+  public void floodFillStopsAtBorder() throws IOException {
+    Picture picture = runMain(tmpFolder, "fill", "0", "0", "ff0000",
+        "images/bwpatterns64x64.png");
+    Picture original = Utils.loadPicture("images/bwpatterns64x64.png");
+    Picture expected = ReferenceProcess.floodFill(original, 0, 0,
+        new Color(255, 0, 0));
+    assertEquals(expected, picture);
+    assertFalse(original.equals(picture));
+    assertEquals(0, Components.floodFill(picture, 0, 0,
+        new Color(255, 0, 0)));
+  }
+
+  @Test
+  public void floodFillStaysInRegion() throws IOException {
+    Picture original = Utils.loadPicture("images/bwpatterns64x64.png");
+    Color red = new Color(255, 0, 0);
+    int left = 5, top = 3, width = 40, height = 30;
+    Picture inside = ReferenceProcess.floodFill(
+        Utils.crop(original, left, top, width, height), 0, 0, red);
+    Picture expected = Utils.crop(original, 0, 0, 64, 64);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        expected.setPixel(left + x, top + y, inside.getPixel(x, y));
+      }
+    }
+
+    Process process = new Process(Utils.crop(original, 0, 0, 64, 64));
+    process.setRegion(new Region(left, top, width, height));
+    process.floodFill(left, top, red);
+    assertEquals(expected, process.getPicture());
+    // the same fill without the region reaches further
+    assertFalse(expected.equals(
+        ReferenceProcess.floodFill(original, left, top, red)));
+
+    Process outside = new Process(Utils.crop(original, 0, 0, 64, 64));
+    outside.setRegion(new Region(left, top, width, height));
+    outside.floodFill(0, 0, red);
+    assertEquals(original, outside.getPicture());
+  }
 }
@@ -3,6 +3,7 @@ package testsuite;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.function.Supplier;
 
 import org.junit.rules.TemporaryFolder;
 
@@ -31,4 +32,23 @@ public class TestSuiteHelper {
     return Utils.loadPicture(outputFile.getAbsolutePath());
   }
 
+  /**
+   * Run some work with operations spread over the given number of cores,
+   * by setting the <tt>picture.parallelism</tt> system property for its
+   * duration.
+   */
+  public static <T> T withParallelism(int cores, Supplier<T> work) {
+    String previous = System.getProperty("picture.parallelism");
+    System.setProperty("picture.parallelism", Integer.toString(cores));
+    try {
+      return work.get();
+    } finally {
+      if (previous == null) {
+        System.clearProperty("picture.parallelism");
+      } else {
+        System.setProperty("picture.parallelism", previous);
+      }
+    }
+  }
+
 }